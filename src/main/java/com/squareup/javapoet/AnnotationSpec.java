@@ -35,6 +35,10 @@ public final class AnnotationSpec {
 
   public final TypeNameProvider type;
   public final Map<String, List<CodeBlock>> members;
+  /** Lazily computed hash code of this annotation, or 0. */
+  private int cachedHashCode;
+  /** The rendered annotation, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
 
   private AnnotationSpec(Builder builder) {
     this.type = builder.type;
@@ -48,6 +52,11 @@ public final class AnnotationSpec {
     formatter.format(this, codeWriter, inline);
   }
 
+  /** Returns true if this is emitted by the {@link DefaultAnnotationFormatter}. */
+  boolean hasDefaultFormatter() {
+    return formatter.getClass() == DefaultAnnotationFormatter.class;
+  }
+
   public static AnnotationSpec get(Annotation annotation) {
     return AnnotationSpecConversionUtils.fromAnnotation(annotation, false);
   }
@@ -76,26 +85,36 @@ public final class AnnotationSpec {
     return builder;
   }
 
+  /**
+   * Annotations emitted by the {@link DefaultAnnotationFormatter} are compared by their type and
+   * members, in order. Those with custom formatters are compared by emitting them.
+   */
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    AnnotationSpec that = (AnnotationSpec) o;
+    if (hasDefaultFormatter() != that.hasDefaultFormatter()) return false;
+    if (!hasDefaultFormatter()) return toString().equals(that.toString());
+    return hashCode() == that.hashCode()
+        && type.equals(that.type)
+        && members.equals(that.members)
+        && Util.sameOrder(members.keySet(), that.members.keySet());
   }
 
   @Override public int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      result = hasDefaultFormatter()
+          ? type.hashCode() * 31 + members.hashCode()
+          : toString().hashCode();
+      cachedHashCode = result;
+    }
+    return result;
   }
 
   @Override public String toString() {
-    StringBuilder out = new StringBuilder();
-    try {
-      CodeWriter codeWriter = new CodeWriter(out);
-      codeWriter.emit("$L", this);
-      return out.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
-    }
+    return rendered.get(out -> new CodeWriter(out).emit("$L", this));
   }
 
   public static final class Builder {
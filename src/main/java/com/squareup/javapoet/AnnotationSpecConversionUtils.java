@@ -88,7 +88,7 @@ public final class AnnotationSpecConversionUtils {
 
         @Override
         public AnnotationSpec.Builder visitEnumConstant(VariableElement c, String name) {
-            return builder.addMember(name, "$T.$L", c.asType(), c.getSimpleName());
+            return builder.addMember(name, "$T.$L", c.asType(), c.getSimpleName().toString());
         }
 
         @Override
@@ -0,0 +1,42 @@
+package com.squareup.javapoet;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+import static com.squareup.javapoet.Util.checkNotNull;
+
+/** A {@link CodeSink} that appends to an {@link Appendable} as it goes. */
+final class AppendableCodeSink implements CodeSink {
+  private final Appendable out;
+
+  AppendableCodeSink(Appendable out) {
+    this.out = checkNotNull(out, "out == null");
+  }
+
+  @Override public void append(char c) throws IOException {
+    out.append(c);
+  }
+
+  @Override public void append(CharSequence s, int start, int end) throws IOException {
+    if (s instanceof String && out instanceof Writer) {
+      // Writer.append() copies the chars to a new string first.
+      ((Writer) out).write((String) s, start, end - start);
+    } else {
+      out.append(s, start, end);
+    }
+  }
+
+  @Override public void flush() throws IOException {
+    if (out instanceof Flushable) {
+      ((Flushable) out).flush();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    if (out instanceof Closeable) {
+      ((Closeable) out).close();
+    }
+  }
+}
@@ -45,6 +45,10 @@ public final class ArrayTypeName extends TypeName {
     return new ArrayTypeName(componentType, concatAnnotations(annotations));
   }
 
+  @Override public ArrayTypeName intern() {
+    return TypeNamePool.INSTANCE.intern(this);
+  }
+
   @Override public TypeName withoutAnnotations() {
     return new ArrayTypeName(componentType);
   }
@@ -59,6 +63,15 @@ public final class ArrayTypeName extends TypeName {
     return emitBrackets(out, varargs);
   }
 
+  @Override boolean equalTo(TypeName o) {
+    ArrayTypeName that = (ArrayTypeName) o;
+    return componentType.equals(that.componentType) && annotations.equals(that.annotations);
+  }
+
+  @Override int computeHashCode() {
+    return componentType.hashCode() * 31 + annotations.hashCode() + 1;
+  }
+
   private CodeWriter emitLeafType(CodeWriter out) throws IOException {
     if (TypeName.asArray(componentType) != null) {
       return TypeName.asArray(componentType).emitLeafType(out);
@@ -0,0 +1,127 @@
+package com.squareup.javapoet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import static com.squareup.javapoet.Util.checkNotNull;
+
+/**
+ * A {@link CodeSink} that encodes characters into a byte buffer, and writes it to a channel. ASCII
+ * characters skip the encoder when the charset encodes them as single bytes of the same value.
+ */
+final class ChannelCodeSink implements CodeSink {
+  private final WritableByteChannel channel;
+  private final CharsetEncoder encoder;
+  private final boolean asciiCompatible;
+  private final ByteBuffer bytes = ByteBuffer.allocate(16384);
+  /** Characters waiting for the encoder. Only holds characters the fast path can't take. */
+  private final CharBuffer chars = CharBuffer.allocate(1024);
+  private boolean closed;
+
+  ChannelCodeSink(WritableByteChannel channel, Charset charset) {
+    this.channel = checkNotNull(channel, "channel == null");
+    this.encoder = checkNotNull(charset, "charset == null").newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.asciiCompatible = isAsciiCompatible(charset);
+  }
+
+  private static boolean isAsciiCompatible(Charset charset) {
+    char[] ascii = new char[128];
+    for (char c = 0; c < ascii.length; c++) {
+      ascii[c] = c;
+    }
+    byte[] encoded = new String(ascii).getBytes(charset);
+    if (encoded.length != ascii.length) return false;
+    for (int i = 0; i < encoded.length; i++) {
+      if (encoded[i] != i) return false;
+    }
+    return true;
+  }
+
+  @Override public void append(char c) throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    if (asciiCompatible && c < 0x80 && settle()) {
+      if (!bytes.hasRemaining()) writeBytes();
+      bytes.put((byte) c);
+      return;
+    }
+    if (!chars.hasRemaining()) encode(false);
+    chars.put(c);
+  }
+
+  @Override public void append(CharSequence s, int start, int end) throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    int i = start;
+    while (i < end) {
+      if (asciiCompatible && settle()) {
+        // Copy the run of ASCII characters that starts here.
+        for (char c; i < end && (c = s.charAt(i)) < 0x80; i++) {
+          if (!bytes.hasRemaining()) writeBytes();
+          bytes.put((byte) c);
+        }
+        if (i == end) return;
+      }
+      // Queue the run of characters the fast path can't take.
+      do {
+        if (!chars.hasRemaining()) encode(false);
+        chars.put(s.charAt(i++));
+      } while (i < end && (!asciiCompatible || s.charAt(i) >= 0x80));
+    }
+  }
+
+  /**
+   * Encodes the pending characters, and returns true if none are left. A high surrogate is left
+   * if the low surrogate hasn't been appended yet.
+   */
+  private boolean settle() throws IOException {
+    if (chars.position() != 0) encode(false);
+    return chars.position() == 0;
+  }
+
+  private void encode(boolean endOfInput) throws IOException {
+    chars.flip();
+    while (true) {
+      CoderResult result = encoder.encode(chars, bytes, endOfInput);
+      if (!result.isOverflow()) break;
+      writeBytes();
+    }
+    if (endOfInput) {
+      while (encoder.flush(bytes).isOverflow()) {
+        writeBytes();
+      }
+    }
+    chars.compact();
+  }
+
+  private void writeBytes() throws IOException {
+    bytes.flip();
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+    bytes.clear();
+  }
+
+  @Override public void flush() throws IOException {
+    if (closed) return;
+    encode(false);
+    writeBytes();
+  }
+
+  @Override public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      encode(true);
+      writeBytes();
+    } finally {
+      channel.close();
+    }
+  }
+}
@@ -18,7 +18,7 @@ package com.squareup.javapoet;
 import com.squareup.javapoet.codewriter.CodeWriter;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +33,17 @@ import static com.squareup.javapoet.Util.checkNotNull;
 
 /** A fully-qualified class name for top-level and member classes. */
 public final class ClassName extends TypeName implements Comparable<ClassName> {
+  /**
+   * The class names of classes. Each class holds its own, so the cache doesn't keep classes or
+   * their class loaders from being unloaded. A class name holds only strings and class names, all
+   * of JavaPoet's own class loader.
+   */
+  private static final ClassValue<ClassName> CLASS_NAMES = new ClassValue<ClassName>() {
+    @Override protected ClassName computeValue(Class<?> clazz) {
+      return compute(clazz);
+    }
+  };
+
   public static final ClassName OBJECT = ClassName.get(Object.class);
 
   /** The name representing the default Java package. */
@@ -47,11 +58,18 @@ public final class ClassName extends TypeName implements Comparable<ClassName> {
   /** This class name, like "Entry" for java.util.Map.Entry. */
   public final String simpleName;
 
-  private List<String> simpleNames;
-
   /** The full class name like "java.util.Map.Entry". */
   public final String canonicalName;
 
+  /** This class and the classes enclosing it, outermost first. */
+  private final ClassName[] enclosingClasses;
+
+  /** The simple names of {@link #enclosingClasses}, like ["Map", "Entry"]. */
+  private final List<String> simpleNames;
+
+  /** The binary name, like "java.util.Map$Entry". */
+  private final String reflectionName;
+
   private ClassName(String packageName, ClassName enclosingClassName, String simpleName) {
     this(packageName, enclosingClassName, simpleName, Collections.emptyList());
   }
@@ -66,6 +84,20 @@ public final class ClassName extends TypeName implements Comparable<ClassName> {
     this.canonicalName = enclosingClassName != null
         ? (enclosingClassName.canonicalName + '.' + simpleName)
         : emptyPackageName;
+    this.reflectionName = enclosingClassName != null
+        ? (enclosingClassName.reflectionName + '$' + simpleName)
+        : canonicalName;
+
+    int depth = enclosingClassName != null ? enclosingClassName.enclosingClasses.length + 1 : 1;
+    this.enclosingClasses = enclosingClassName != null
+        ? Arrays.copyOf(enclosingClassName.enclosingClasses, depth)
+        : new ClassName[1];
+    this.enclosingClasses[depth - 1] = this;
+    String[] names = new String[depth];
+    for (int i = 0; i < depth; i++) {
+      names[i] = enclosingClasses[i].simpleName;
+    }
+    this.simpleNames = Collections.unmodifiableList(Arrays.asList(names));
   }
 
   @Override public ClassName annotated(List<AnnotationSpec> annotations) {
@@ -81,6 +113,10 @@ public final class ClassName extends TypeName implements Comparable<ClassName> {
     return new ClassName(packageName, resultEnclosingClassName, simpleName);
   }
 
+  @Override public ClassName intern() {
+    return TypeNamePool.INSTANCE.intern(this);
+  }
+
   @Override public boolean isAnnotated() {
     return super.isAnnotated() || (enclosingClassName != null && enclosingClassName.isAnnotated());
   }
@@ -111,25 +147,10 @@ public final class ClassName extends TypeName implements Comparable<ClassName> {
 
   /** Return the binary name of a class. */
   public String reflectionName() {
-    String emptyClassName = packageName.isEmpty() ? simpleName : packageName + '.' + simpleName;
-    return enclosingClassName != null
-        ? (enclosingClassName.reflectionName() + '$' + simpleName)
-        : emptyClassName;
+    return reflectionName;
   }
 
   public List<String> simpleNames() {
-    if (simpleNames != null) {
-      return simpleNames;
-    }
-
-    if (enclosingClassName == null) {
-      simpleNames = Collections.singletonList(simpleName);
-    } else {
-      List<String> mutableNames = new ArrayList<>();
-      mutableNames.addAll(enclosingClassName().simpleNames());
-      mutableNames.add(simpleName);
-      simpleNames = Collections.unmodifiableList(mutableNames);
-    }
     return simpleNames;
   }
 
@@ -168,7 +189,10 @@ public final class ClassName extends TypeName implements Comparable<ClassName> {
     checkArgument(!clazz.isPrimitive(), "primitive types cannot be represented as a ClassName");
     checkArgument(!void.class.equals(clazz), "'void' type cannot be represented as a ClassName");
     checkArgument(!clazz.isArray(), "array types cannot be represented as a ClassName");
+    return CLASS_NAMES.get(clazz);
+  }
 
+  private static ClassName compute(Class<?> clazz) {
     StringBuilder anonymousSuffix = new StringBuilder();
     while (clazz.isAnonymousClass()) {
       int lastDollar = clazz.getName().lastIndexOf('$');
@@ -230,77 +254,96 @@ public final class ClassName extends TypeName implements Comparable<ClassName> {
   /** Returns the class name for {@code element}. */
   public static ClassName get(TypeElement element) {
     checkNotNull(element, "element == null");
+    TypeMirrorCache cache = TypeMirrorCache.current();
+    ClassName cached = cache != null ? cache.className(element) : null;
+    if (cached != null) return cached;
     String simpleName = element.getSimpleName().toString();
 
-    return element.getEnclosingElement().accept(new SimpleElementVisitor8<ClassName, Void>() {
-      @Override public ClassName visitPackage(PackageElement packageElement, Void p) {
-        return new ClassName(packageElement.getQualifiedName().toString(), null, simpleName);
-      }
-
-      @Override public ClassName visitType(TypeElement enclosingClass, Void p) {
-        return ClassName.get(enclosingClass).nestedClass(simpleName);
-      }
-
-      @Override public ClassName visitUnknown(Element unknown, Void p) {
-        return get("", simpleName);
-      }
-
-      @Override public ClassName defaultAction(Element enclosingElement, Void p) {
-        throw new IllegalArgumentException("Unexpected type nesting: " + element);
-      }
-    }, null);
+    ClassName className = element.getEnclosingElement().accept(
+        new SimpleElementVisitor8<ClassName, Void>() {
+          @Override public ClassName visitPackage(PackageElement packageElement, Void p) {
+            return new ClassName(packageElement.getQualifiedName().toString(), null, simpleName);
+          }
+
+          @Override public ClassName visitType(TypeElement enclosingClass, Void p) {
+            return ClassName.get(enclosingClass).nestedClass(simpleName);
+          }
+
+          @Override public ClassName visitUnknown(Element unknown, Void p) {
+            return get("", simpleName);
+          }
+
+          @Override public ClassName defaultAction(Element enclosingElement, Void p) {
+            throw new IllegalArgumentException("Unexpected type nesting: " + element);
+          }
+        }, null);
+    if (cache != null) cache.putClassName(element, className);
+    return className;
   }
 
   @Override public int compareTo(ClassName o) {
     return canonicalName.compareTo(o.canonicalName);
   }
 
+  /**
+   * Class names are emitted the same if their canonical names are, and they are annotated alike.
+   * Levels are matched from the innermost class out, as where the package ends doesn't matter.
+   * Annotations are emitted before the simple names, so these must match from the outermost
+   * annotated level in.
+   */
+  @Override boolean equalTo(TypeName o) {
+    ClassName that = (ClassName) o;
+    if (!canonicalName.equals(that.canonicalName)) return false;
+    ClassName a = this;
+    ClassName b = that;
+    boolean simpleNamesEqual = true;
+    for (; a != null && b != null; a = a.enclosingClassName, b = b.enclosingClassName) {
+      simpleNamesEqual &= a.simpleName.equals(b.simpleName);
+      if (!a.annotations.equals(b.annotations)) return false;
+      if (!a.annotations.isEmpty() && !simpleNamesEqual) return false;
+    }
+    for (ClassName rest = a != null ? a : b; rest != null; rest = rest.enclosingClassName) {
+      if (!rest.annotations.isEmpty()) return false;
+    }
+    return true;
+  }
+
+  @Override int computeHashCode() {
+    int result = canonicalName.hashCode();
+    int level = 1;
+    for (ClassName c = this; c != null; c = c.enclosingClassName, level++) {
+      if (!c.annotations.isEmpty()) result += level * c.annotations.hashCode();
+    }
+    return result;
+  }
+
   @Override
   public CodeWriter emit(CodeWriter out) throws IOException {
     boolean charsEmitted = false;
-    for (ClassName className : enclosingClasses()) {
-      String actualName;
+    for (ClassName className : enclosingClasses) {
       if (charsEmitted) {
         // We've already emitted an enclosing class. Emit as we go.
         out.emit(".");
-        actualName = className.simpleName;
+        if (className.isAnnotated()) {
+          out.emit(" ");
+          className.emitAnnotations(out);
+        }
+        out.emit(className.simpleName);
 
       } else if (className.isAnnotated() || className == this) {
         // We encountered the first enclosing class that must be emitted.
-        String qualifiedName = out.lookupName(className);
-        int dot = qualifiedName.lastIndexOf('.');
-        if (dot != -1) {
-          out.emitAndIndent(qualifiedName.substring(0, dot + 1));
-          actualName = qualifiedName.substring(dot + 1);
-          charsEmitted = true;
-        } else {
-          actualName = qualifiedName;
-        }
-
-      } else {
-        // Don't emit this enclosing type. Keep going so we can be more precise.
-        continue;
-      }
-
-      if (className.isAnnotated()) {
-        if (charsEmitted) out.emit(" ");
-        className.emitAnnotations(out);
+        out.emitClassName(className);
+        charsEmitted = true;
       }
 
-      out.emit(actualName);
-      charsEmitted = true;
+      // Otherwise don't emit this enclosing type. Keep going so we can be more precise.
     }
 
     return out;
   }
 
   /** Returns all enclosing classes in this, outermost first. */
-  private List<ClassName> enclosingClasses() {
-    List<ClassName> result = new ArrayList<>();
-    for (ClassName c = this; c != null; c = c.enclosingClassName) {
-      result.add(c);
-    }
-    Collections.reverse(result);
-    return result;
+  List<ClassName> enclosingClasses() {
+    return Collections.unmodifiableList(Arrays.asList(enclosingClasses));
   }
 }
@@ -17,12 +17,14 @@ package com.squareup.javapoet;
 
 import com.squareup.javapoet.codewriter.CodeWriter;
 
-import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.RandomAccess;
 import java.util.regex.Pattern;
 import java.util.stream.Collector;
 import java.util.stream.StreamSupport;
@@ -65,44 +67,277 @@ import static com.squareup.javapoet.Util.checkArgument;
  * </ul>
  */
 public final class CodeBlock {
-  private static final Pattern NAMED_ARGUMENT =
-      Pattern.compile("\\$(?<argumentName>[\\w_]+):(?<typeChar>[\\w]).*");
   private static final Pattern LOWERCASE = Pattern.compile("[a-z]+[\\w_]*");
 
-  /** A heterogeneous list containing string literals and value placeholders. */
+  /** The type of a format part that is text rather than a placeholder. */
+  public static final char TEXT = 0;
+
+  /**
+   * A heterogeneous list containing string literals and value placeholders. This is a view of the
+   * format parts, which are stored more compactly.
+   */
   public final List<String> formatParts;
   public final List<Object> args;
 
+  /** The type of each format part: the character of its placeholder, like 'L' for $L, or TEXT. */
+  private final byte[] partTypes;
+  /** The text format parts, in order. */
+  private final String[] texts;
+
+  /** Lazily computed references of this block, in the order they are emitted. */
+  private List<Object> references;
+
+  /**
+   * Lazily computed hash code of this block, or 0. Only the hash is kept: the parts it's computed
+   * from are built again when blocks with equal hashes are compared.
+   */
+  private int cachedHashCode;
+
+  /** The rendered code, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
+
   private CodeBlock(Builder builder) {
-    this.formatParts = Util.immutableList(builder.formatParts);
+    this.partTypes = Arrays.copyOf(builder.partTypes, builder.partCount);
+    this.texts = builder.texts.toArray(new String[0]);
     this.args = Util.immutableList(builder.args);
+    this.formatParts = new FormatParts();
+  }
+
+  /** Returns the number of format parts in this block. */
+  public int partCount() {
+    return partTypes.length;
+  }
+
+  /**
+   * Returns the character of the placeholder at format part {@code index}, like 'L' for {@code $L},
+   * or {@link #TEXT} if that part is text.
+   */
+  public char partType(int index) {
+    return (char) partTypes[index];
+  }
+
+  /** Returns the text format part number {@code textIndex}, counting only the text parts. */
+  public String text(int textIndex) {
+    return texts[textIndex];
+  }
+
+  /**
+   * Returns the arguments of this block that may reference types, in the order they are emitted:
+   * a {@link TypeReference} for each {@code $T}, and the code blocks, types and annotations emitted
+   * by {@code $L}. Analyzing a block again doesn't need to go through its format parts.
+   */
+  List<Object> references() {
+    List<Object> result = references;
+    if (result == null) {
+      result = new ArrayList<>();
+      int a = 0;
+      int t = 0;
+      for (int i = 0; i < partTypes.length; i++) {
+        switch (partTypes[i]) {
+          case TEXT:
+            t++;
+            break;
+          case 'L':
+            Object arg = args.get(a++);
+            if (arg instanceof CodeBlock || arg instanceof TypeSpec || arg instanceof AnnotationSpec) {
+              result.add(arg);
+            }
+            break;
+          case 'N':
+          case 'S':
+            a++;
+            break;
+          case 'T':
+            TypeName type = (TypeName) args.get(a++);
+            String followingPart = type instanceof ClassName && i + 1 < partTypes.length
+                && partTypes[i + 1] == TEXT
+                ? texts[t]
+                : null;
+            result.add(new TypeReference(type, followingPart));
+            break;
+          default:
+            break;
+        }
+      }
+      result = Collections.unmodifiableList(result);
+      references = result;
+    }
+    return result;
   }
 
   public boolean isEmpty() {
-    return formatParts.isEmpty();
+    return partTypes.length == 0;
   }
 
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    CodeBlock that = (CodeBlock) o;
+    return hashCode() == that.hashCode() && comparisonParts().equals(that.comparisonParts());
   }
 
   @Override public int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      result = comparisonParts().hashCode();
+      cachedHashCode = result;
+    }
+    return result;
   }
 
-  @Override public String toString() {
-    StringBuilder out = new StringBuilder();
-    try {
-      new CodeWriter(out).emit(this);
-      return out.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
+  /**
+   * Returns what this block emits, without emitting it: the text, indented as {@code toString()}
+   * indents it, and around it the type declarations and annotations emitted by {@code $L}, which
+   * are compared by their parts. Types are emitted as their text. Blocks emitted by {@code $L} are
+   * inlined. Blocks with equal parts are emitted the same, except that {@code $W} is compared as
+   * the space it emits when the line isn't wrapped.
+   */
+  private List<Object> comparisonParts() {
+    Comparison comparison = new Comparison();
+    comparison.add(this);
+    return comparison.finish();
+  }
+
+  /**
+   * Reduces blocks to what {@code toString()} emits. Indentation is tracked like the code writer
+   * tracks it, so that blocks that indent the same lines in different ways are equal.
+   */
+  private static final class Comparison {
+    private static final String INDENT = "  ";
+
+    private final List<Object> parts = new ArrayList<>();
+    private final StringBuilder text = new StringBuilder();
+    private int indentLevel;
+    /** -1 outside of a statement, or else the number of line breaks in the statement so far. */
+    private int statementLine = -1;
+    private boolean trailingNewline;
+
+    void add(CodeBlock block) {
+      int a = 0;
+      int t = 0;
+      for (int i = 0; i < block.partTypes.length; i++) {
+        switch ((char) block.partTypes[i]) {
+          case TEXT:
+            emit(block.texts[t++]);
+            break;
+          case '$':
+            emit("$");
+            break;
+          case 'N':
+            emit((String) block.args.get(a++));
+            break;
+          case 'S':
+            // Emitted like the string literal toString() emits, as the indent is always the default.
+            String string = (String) block.args.get(a++);
+            emit(string != null ? Util.stringLiteralWithDoubleQuotes(string, INDENT) : "null");
+            break;
+          case 'L':
+            Object arg = block.args.get(a++);
+            if (arg instanceof CodeBlock) {
+              add((CodeBlock) arg);
+            } else if (arg instanceof TypeSpec || arg instanceof AnnotationSpec) {
+              addSpec(arg);
+            } else {
+              emit(String.valueOf(arg));
+            }
+            break;
+          case 'T':
+            emit(block.args.get(a++).toString());
+            break;
+          case '>':
+            indentLevel++;
+            break;
+          case '<':
+            indentLevel--;
+            break;
+          case '[':
+            statementLine = 0;
+            break;
+          case ']':
+            if (statementLine > 0) indentLevel -= 2;
+            statementLine = -1;
+            break;
+          case 'W':
+            // The space comes before the indentation of the text that follows it.
+            text.append(' ');
+            break;
+          default: // $Z
+            break;
+        }
+      }
+    }
+
+    private void emit(String s) {
+      int lineStart = 0;
+      for (int i = 0, length = s.length(); i < length; i++) {
+        char c = s.charAt(i);
+        if (!isLineBreak(c)) continue;
+        emitLineContent(s, lineStart, i);
+        if (c == '\r' && i + 1 < length && s.charAt(i + 1) == '\n') i++;
+        lineBreak();
+        lineStart = i + 1;
+      }
+      emitLineContent(s, lineStart, s.length());
+    }
+
+    private void emitLineContent(String s, int start, int end) {
+      if (start == end) return;
+      startLine();
+      text.append(s, start, end);
+    }
+
+    private void startLine() {
+      if (trailingNewline) {
+        for (int i = 0; i < indentLevel; i++) {
+          text.append(INDENT);
+        }
+      }
+      trailingNewline = false;
+    }
+
+    private void lineBreak() {
+      text.append('\n');
+      trailingNewline = true;
+      if (statementLine != -1) {
+        if (statementLine == 0) indentLevel += 2;
+        statementLine++;
+      }
+    }
+
+    /**
+     * Adds a type declaration or annotation, with the indentation its lines are emitted at. Type
+     * declarations span lines and end with a brace, annotations are emitted on one line.
+     */
+    private void addSpec(Object spec) {
+      startLine();
+      if (text.length() > 0) {
+        parts.add(text.toString());
+        text.setLength(0);
+      }
+      parts.add(indentLevel);
+      parts.add(spec);
+      if (spec instanceof TypeSpec && statementLine != -1) {
+        if (statementLine == 0) indentLevel += 2;
+        statementLine++;
+      }
+    }
+
+    List<Object> finish() {
+      if (text.length() > 0) parts.add(text.toString());
+      return parts;
+    }
+
+    /** Returns true if {@code c} is a line break, as matched by {@code \R} in a regex. */
+    private static boolean isLineBreak(char c) {
+      return (c >= '\n' && c <= '\r') || c == '\u0085' || c == '\u2028' || c == '\u2029';
     }
   }
 
+  @Override public String toString() {
+    return rendered.get(out -> new CodeWriter(out).emit(this));
+  }
+
   public static CodeBlock of(String format, Object... args) {
     return new Builder().add(format, args).build();
   }
@@ -153,20 +388,38 @@ public final class CodeBlock {
 
   public Builder toBuilder() {
     Builder builder = new Builder();
-    builder.formatParts.addAll(formatParts);
-    builder.args.addAll(args);
+    builder.add(this);
     return builder;
   }
 
   public static final class Builder {
-    final List<String> formatParts = new ArrayList<>();
+    private static final CodeTemplate LITERAL = CodeTemplate.compile("$L");
+    private static final CodeTemplate STATEMENT_START = CodeTemplate.compile("$[");
+    private static final CodeTemplate STATEMENT_END = CodeTemplate.compile(";\n$]");
+    private static final CodeTemplate CONTROL_FLOW_END = CodeTemplate.compile("}\n");
+
+    private byte[] partTypes = new byte[16];
+    private int partCount;
+    private final List<String> texts = new ArrayList<>();
     final List<Object> args = new ArrayList<>();
 
     private Builder() {
     }
 
     public boolean isEmpty() {
-      return formatParts.isEmpty();
+      return partCount == 0;
+    }
+
+    private void addPart(char type) {
+      if (partCount == partTypes.length) {
+        partTypes = Arrays.copyOf(partTypes, partCount * 2);
+      }
+      partTypes[partCount++] = (byte) type;
+    }
+
+    private void addText(String text) {
+      addPart(TEXT);
+      texts.add(text);
     }
 
     /**
@@ -181,48 +434,26 @@ public final class CodeBlock {
      * value {@code java.lang.Integer.class} in the argument map.
      */
     public Builder addNamed(String format, Map<String, ?> arguments) {
-      int p = 0;
+      return addNamed(CodeTemplate.named(format), arguments);
+    }
 
+    /** Adds code from {@code template} using named arguments, like {@link #addNamed(String, Map)}. */
+    public Builder addNamed(CodeTemplate template, Map<String, ?> arguments) {
+      checkArgument(template.named, "template has positional arguments: '%s'", template.format);
       for (String argument : arguments.keySet()) {
         checkArgument(LOWERCASE.matcher(argument).matches(),
             "argument '%s' must start with a lowercase character", argument);
       }
 
-      while (p < format.length()) {
-        int nextP = format.indexOf("$", p);
-        if (nextP == -1) {
-          formatParts.add(format.substring(p));
-          break;
-        }
-
-        if (p != nextP) {
-          formatParts.add(format.substring(p, nextP));
-          p = nextP;
-        }
-
-        Matcher matcher = null;
-        int colon = format.indexOf(':', p);
-        if (colon != -1) {
-          int endIndex = Math.min(colon + 2, format.length());
-          matcher = NAMED_ARGUMENT.matcher(format.substring(p, endIndex));
-        }
-        if (matcher != null && matcher.lookingAt()) {
-          String argumentName = matcher.group("argumentName");
-          checkArgument(arguments.containsKey(argumentName), "Missing named argument for $%s",
-              argumentName);
-          char formatChar = matcher.group("typeChar").charAt(0);
-          addArgument(format, formatChar, arguments.get(argumentName));
-          formatParts.add("$" + formatChar);
-          p += matcher.regionEnd();
-        } else {
-          checkArgument(p < format.length() - 1, "dangling $ at end");
-          checkArgument(isNoArgPlaceholder(format.charAt(p + 1)),
-              "unknown format $%s at %s in '%s'", format.charAt(p + 1), p + 1, format);
-          formatParts.add(format.substring(p, p + 2));
-          p += 2;
+      for (CodeTemplate.Part part : template.parts) {
+        if (part.takesArgument) {
+          checkArgument(arguments.containsKey(part.name), "Missing named argument for $%s",
+              part.name);
+          addArgument(template.format, part.type, arguments.get(part.name));
         }
+        addPart(part);
       }
-
+      checkArgument(template.error == null, "%s", template.error);
       return this;
     }
 
@@ -238,83 +469,62 @@ public final class CodeBlock {
      * error.
      */
     public Builder add(String format, Object... args) {
+      return add(CodeTemplate.positional(format), args);
+    }
+
+    /**
+     * Adds code from {@code template} with positional or relative arguments, like {@link
+     * #add(String, Object...)}.
+     */
+    public Builder add(CodeTemplate template, Object... args) {
+      checkArgument(!template.named, "template has named arguments: '%s'", template.format);
       boolean hasRelative = false;
       boolean hasIndexed = false;
 
-      int relativeParameterCount = 0;
-      int[] indexedParameterCount = new int[args.length];
-
-      for (int p = 0; p < format.length(); ) {
-        if (format.charAt(p) != '$') {
-          int nextP = format.indexOf('$', p + 1);
-          if (nextP == -1) nextP = format.length();
-          formatParts.add(format.substring(p, nextP));
-          p = nextP;
-          continue;
-        }
-
-        p++; // '$'.
-
-        // Consume zero or more digits, leaving 'c' as the first non-digit char after the '$'.
-        int indexStart = p;
-        char c;
-        do {
-          checkArgument(p < format.length(), "dangling format characters in '%s'", format);
-          c = format.charAt(p++);
-        } while (c >= '0' && c <= '9');
-        int indexEnd = p - 1;
-
-        // If 'c' doesn't take an argument, we're done.
-        if (isNoArgPlaceholder(c)) {
-          checkArgument(
-              indexStart == indexEnd, "$$, $>, $<, $[, $], $W, and $Z may not have an index");
-          formatParts.add("$" + c);
-          continue;
-        }
-
-        // Find either the indexed argument, or the relative argument. (0-based).
-        int index;
-        if (indexStart < indexEnd) {
-          index = Integer.parseInt(format.substring(indexStart, indexEnd)) - 1;
-          hasIndexed = true;
-          if (args.length > 0) {
-            indexedParameterCount[index % args.length]++; // modulo is needed, checked below anyway
+      for (CodeTemplate.Part part : template.parts) {
+        if (part.takesArgument) {
+          if (part.indexed) {
+            hasIndexed = true;
+          } else {
+            hasRelative = true;
           }
-        } else {
-          index = relativeParameterCount;
-          hasRelative = true;
-          relativeParameterCount++;
+          checkArgument(part.index >= 0 && part.index < args.length,
+              "index %d for '%s' not in range (received %s arguments)",
+              part.index + 1, part.source, args.length);
+          checkArgument(!hasIndexed || !hasRelative, "cannot mix indexed and positional parameters");
+          addArgument(template.format, part.type, args[part.index]);
         }
-
-        checkArgument(index >= 0 && index < args.length,
-            "index %d for '%s' not in range (received %s arguments)",
-            index + 1, format.substring(indexStart - 1, indexEnd + 1), args.length);
-        checkArgument(!hasIndexed || !hasRelative, "cannot mix indexed and positional parameters");
-
-        addArgument(format, c, args[index]);
-
-        formatParts.add("$" + c);
+        addPart(part);
       }
+      checkArgument(template.error == null, "%s", template.error);
 
-      if (hasRelative) {
-        checkArgument(relativeParameterCount >= args.length,
-            "unused arguments: expected %s, received %s", relativeParameterCount, args.length);
+      if (template.hasRelative) {
+        checkArgument(template.relativeCount >= args.length,
+            "unused arguments: expected %s, received %s", template.relativeCount, args.length);
       }
-      if (hasIndexed) {
-        List<String> unused = new ArrayList<>();
+      if (template.hasIndexed) {
+        List<String> unused = null;
         for (int i = 0; i < args.length; i++) {
-          if (indexedParameterCount[i] == 0) {
+          if (!template.usesIndex(i)) {
+            if (unused == null) unused = new ArrayList<>();
             unused.add("$" + (i + 1));
           }
         }
-        String s = unused.size() == 1 ? "" : "s";
-        checkArgument(unused.isEmpty(), "unused argument%s: %s", s, String.join(", ", unused));
+        if (unused != null) {
+          String s = unused.size() == 1 ? "" : "s";
+          throw new IllegalArgumentException(
+              String.format("unused argument%s: %s", s, String.join(", ", unused)));
+        }
       }
       return this;
     }
 
-    private boolean isNoArgPlaceholder(char c) {
-      return c == '$' || c == '>' || c == '<' || c == '[' || c == ']' || c == 'W' || c == 'Z';
+    private void addPart(CodeTemplate.Part part) {
+      if (part.type == TEXT) {
+        addText(part.text);
+      } else {
+        addPart(part.type);
+      }
     }
 
     private void addArgument(String format, char c, Object arg) {
@@ -385,7 +595,7 @@ public final class CodeBlock {
 
     public Builder endControlFlow() {
       unindent();
-      add("}\n");
+      add(CONTROL_FLOW_END);
       return this;
     }
 
@@ -400,34 +610,48 @@ public final class CodeBlock {
     }
 
     public Builder addStatement(String format, Object... args) {
-      add("$[");
+      add(STATEMENT_START);
       add(format, args);
-      add(";\n$]");
+      add(STATEMENT_END);
+      return this;
+    }
+
+    public Builder addStatement(CodeTemplate template, Object... args) {
+      add(STATEMENT_START);
+      add(template, args);
+      add(STATEMENT_END);
       return this;
     }
 
     public Builder addStatement(CodeBlock codeBlock) {
-      return addStatement("$L", codeBlock);
+      return addStatement(LITERAL, codeBlock);
     }
 
     public Builder add(CodeBlock codeBlock) {
-      formatParts.addAll(codeBlock.formatParts);
+      if (partCount + codeBlock.partTypes.length > partTypes.length) {
+        partTypes = Arrays.copyOf(partTypes,
+            Math.max(partCount + codeBlock.partTypes.length, partCount * 2));
+      }
+      System.arraycopy(codeBlock.partTypes, 0, partTypes, partCount, codeBlock.partTypes.length);
+      partCount += codeBlock.partTypes.length;
+      Collections.addAll(texts, codeBlock.texts);
       args.addAll(codeBlock.args);
       return this;
     }
 
     public Builder indent() {
-      this.formatParts.add("$>");
+      addPart('>');
       return this;
     }
 
     public Builder unindent() {
-      this.formatParts.add("$<");
+      addPart('<');
       return this;
     }
 
     public Builder clear() {
-      formatParts.clear();
+      partCount = 0;
+      texts.clear();
       args.clear();
       return this;
     }
@@ -469,4 +693,38 @@ public final class CodeBlock {
       return builder.build();
     }
   }
+
+  /** The format parts of a block, materialized when first read. */
+  private final class FormatParts extends AbstractList<String> implements RandomAccess {
+    private volatile String[] parts;
+
+    @Override public String get(int index) {
+      String[] result = parts;
+      if (result == null) {
+        result = new String[partTypes.length];
+        int t = 0;
+        for (int i = 0; i < partTypes.length; i++) {
+          result[i] = partTypes[i] == TEXT ? texts[t++] : CodeTemplate.placeholder((char) partTypes[i]);
+        }
+        parts = result;
+      }
+      return result[index];
+    }
+
+    @Override public int size() {
+      return partTypes.length;
+    }
+  }
+
+  /** A type emitted by {@code $T}. */
+  static final class TypeReference {
+    final TypeName type;
+    /** The format part following the type, if it may be a member of it that is statically imported. */
+    final String followingPart;
+
+    TypeReference(TypeName type, String followingPart) {
+      this.type = type;
+      this.followingPart = followingPart;
+    }
+  }
 }
@@ -0,0 +1,53 @@
+package com.squareup.javapoet;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Where {@link LineWrapper} writes the characters of generated code. Code is written in many small
+ * pieces, like single spaces, indents and dots, so sinks that write to files buffer them.
+ *
+ * <p>Buffering sinks hold on to what's written until they're flushed or closed.
+ */
+public interface CodeSink extends Flushable, Closeable {
+  void append(char c) throws IOException;
+
+  /** Appends the characters of {@code s} from {@code start} to {@code end}. */
+  void append(CharSequence s, int start, int end) throws IOException;
+
+  default void append(CharSequence s) throws IOException {
+    append(s, 0, s.length());
+  }
+
+  /**
+   * Returns a sink that appends straight to {@code out}, without buffering. Flushing and closing it
+   * flushes and closes {@code out} if it supports that.
+   */
+  static CodeSink of(Appendable out) {
+    return new AppendableCodeSink(out);
+  }
+
+  /** Returns a sink that buffers characters and writes them to {@code out} in blocks. */
+  static CodeSink buffered(Writer out) {
+    return new WriterCodeSink(out);
+  }
+
+  /**
+   * Returns a sink that encodes characters with {@code charset} into a buffer, and writes it to
+   * {@code channel} in blocks. For charsets that encode ASCII as single bytes, like UTF-8, ASCII
+   * characters are copied into the buffer without going through the encoder. Unmappable characters
+   * are replaced, like {@link java.io.OutputStreamWriter} does.
+   */
+  static CodeSink encoding(WritableByteChannel channel, Charset charset) {
+    return new ChannelCodeSink(channel, charset);
+  }
+
+  /** Returns a sink that appends to both {@code first} and {@code second}, like {@code tee}. */
+  static CodeSink tee(CodeSink first, CodeSink second) {
+    return new TeeCodeSink(first, second);
+  }
+}
@@ -0,0 +1,326 @@
+package com.squareup.javapoet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A format string of a {@link CodeBlock}, parsed once so that it can be bound to arguments many
+ * times. Templates are bound with {@link CodeBlock.Builder#add(CodeTemplate, Object...)} or
+ * {@link CodeBlock.Builder#addNamed(CodeTemplate, Map)}, which only check and convert the arguments.
+ *
+ * <p>Format strings passed to the builder directly are parsed into templates too. The templates of
+ * recently used short format strings are kept, so the builder's methods don't parse them again.
+ * Longer format strings, like generated SQL or JSON text, are parsed on each call. To parse one
+ * that's used many times only once, compile it and keep the template.
+ */
+public final class CodeTemplate {
+  private static final Pattern NAMED_ARGUMENT =
+      Pattern.compile("\\$(?<argumentName>[\\w_]+):(?<typeChar>[\\w]).*");
+
+  /** The number of format strings to keep the templates of, in each cache. */
+  static final int CACHE_SIZE = 512;
+  /** The length of the longest format string whose template is kept. */
+  static final int MAX_CACHED_LENGTH = 256;
+  /** The templates of recently used format strings. Guarded by themselves. */
+  private static final Map<String, CodeTemplate> POSITIONAL_CACHE = lruCache();
+  private static final Map<String, CodeTemplate> NAMED_CACHE = lruCache();
+
+  final String format;
+  final boolean named;
+  final List<Part> parts;
+  /** True if some placeholder refers to its argument by index, like {@code $2L}. */
+  final boolean hasIndexed;
+  /** True if some placeholder refers to the next argument, like {@code $L}. */
+  final boolean hasRelative;
+  final int relativeCount;
+  /**
+   * The distinct indices of the arguments referred to by index, in ascending order. Only indices
+   * that occur are held, as an index in the format string may be arbitrarily large.
+   */
+  final int[] usedIndices;
+  /**
+   * The error in the format string after the last part, or null. Binding reports it once the parts
+   * before it are bound, so that errors are reported in the order of the format string.
+   */
+  final String error;
+
+  private CodeTemplate(String format, boolean named, List<Part> parts, String error) {
+    this.format = format;
+    this.named = named;
+    this.parts = Collections.unmodifiableList(parts);
+    this.error = error;
+
+    boolean hasIndexed = false;
+    boolean hasRelative = false;
+    int relativeCount = 0;
+    int[] indices = new int[parts.size()];
+    int indexCount = 0;
+    for (Part part : parts) {
+      if (part.indexed) {
+        hasIndexed = true;
+        indices[indexCount++] = part.index;
+      } else if (part.takesArgument && !named) {
+        hasRelative = true;
+        relativeCount++;
+      }
+    }
+    this.hasIndexed = hasIndexed;
+    this.hasRelative = hasRelative;
+    this.relativeCount = relativeCount;
+    this.usedIndices = distinct(indices, indexCount);
+  }
+
+  /** Returns the distinct values of the first {@code count} of {@code values}, sorted. */
+  private static int[] distinct(int[] values, int count) {
+    Arrays.sort(values, 0, count);
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      if (size == 0 || values[i] != values[size - 1]) values[size++] = values[i];
+    }
+    return Arrays.copyOf(values, size);
+  }
+
+  /** Returns true if some placeholder refers to argument {@code index} by index. */
+  boolean usesIndex(int index) {
+    return Arrays.binarySearch(usedIndices, index) >= 0;
+  }
+
+  /**
+   * Returns the template of {@code format}, with positional or relative arguments as in {@link
+   * CodeBlock.Builder#add(String, Object...)}.
+   *
+   * @throws IllegalArgumentException if {@code format} is malformed.
+   */
+  public static CodeTemplate compile(String format) {
+    return validated(positional(format));
+  }
+
+  /**
+   * Returns the template of {@code format}, with named arguments as in {@link
+   * CodeBlock.Builder#addNamed(String, Map)}.
+   *
+   * @throws IllegalArgumentException if {@code format} is malformed.
+   */
+  public static CodeTemplate compileNamed(String format) {
+    return validated(named(format));
+  }
+
+  private static CodeTemplate validated(CodeTemplate template) {
+    Util.checkArgument(template.error == null, "%s", template.error);
+    for (Part part : template.parts) {
+      Util.checkArgument(!part.takesArgument || isArgumentType(part.type),
+          "invalid format string: '%s'", template.format);
+    }
+    return template;
+  }
+
+  /** Returns the template of {@code format}, which may have an {@link #error}. */
+  static CodeTemplate positional(String format) {
+    return cached(POSITIONAL_CACHE, format, false);
+  }
+
+  /** Returns the template of {@code format}, which may have an {@link #error}. */
+  static CodeTemplate named(String format) {
+    return cached(NAMED_CACHE, format, true);
+  }
+
+  private static CodeTemplate cached(Map<String, CodeTemplate> cache, String format,
+      boolean named) {
+    if (format.length() > MAX_CACHED_LENGTH) {
+      return named ? parseNamed(format) : parsePositional(format);
+    }
+    CodeTemplate template;
+    synchronized (cache) {
+      template = cache.get(format);
+    }
+    if (template == null) {
+      template = named ? parseNamed(format) : parsePositional(format);
+      synchronized (cache) {
+        cache.put(format, template);
+      }
+    }
+    return template;
+  }
+
+  /** Returns a map that drops its least recently used entry past {@link #CACHE_SIZE}. */
+  private static Map<String, CodeTemplate> lruCache() {
+    return new LinkedHashMap<String, CodeTemplate>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CodeTemplate> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+  }
+
+  private static CodeTemplate parsePositional(String format) {
+    List<Part> parts = new ArrayList<>();
+    int relativeIndex = 0;
+
+    for (int p = 0; p < format.length(); ) {
+      if (format.charAt(p) != '$') {
+        int nextP = format.indexOf('$', p + 1);
+        if (nextP == -1) nextP = format.length();
+        parts.add(Part.text(format.substring(p, nextP)));
+        p = nextP;
+        continue;
+      }
+
+      p++; // '$'.
+
+      // Consume zero or more digits, leaving 'c' as the first non-digit char after the '$'.
+      int indexStart = p;
+      char c;
+      do {
+        if (p >= format.length()) {
+          return new CodeTemplate(format, false, parts,
+              String.format("dangling format characters in '%s'", format));
+        }
+        c = format.charAt(p++);
+      } while (c >= '0' && c <= '9');
+      int indexEnd = p - 1;
+
+      // If 'c' doesn't take an argument, we're done.
+      if (isNoArgPlaceholder(c)) {
+        if (indexStart != indexEnd) {
+          return new CodeTemplate(format, false, parts,
+              "$$, $>, $<, $[, $], $W, and $Z may not have an index");
+        }
+        parts.add(Part.noArgument(c));
+        continue;
+      }
+
+      // Find either the indexed argument, or the relative argument. (0-based).
+      String source = format.substring(indexStart - 1, indexEnd + 1);
+      if (indexStart < indexEnd) {
+        int index;
+        try {
+          index = Integer.parseInt(format.substring(indexStart, indexEnd)) - 1;
+        } catch (NumberFormatException e) {
+          return new CodeTemplate(format, false, parts, e.getMessage());
+        }
+        parts.add(Part.argument(c, index, true, source, null));
+      } else {
+        parts.add(Part.argument(c, relativeIndex++, false, source, null));
+      }
+    }
+
+    return new CodeTemplate(format, false, parts, null);
+  }
+
+  private static CodeTemplate parseNamed(String format) {
+    List<Part> parts = new ArrayList<>();
+    int p = 0;
+
+    while (p < format.length()) {
+      int nextP = format.indexOf("$", p);
+      if (nextP == -1) {
+        parts.add(Part.text(format.substring(p)));
+        break;
+      }
+
+      if (p != nextP) {
+        parts.add(Part.text(format.substring(p, nextP)));
+        p = nextP;
+      }
+
+      Matcher matcher = null;
+      int colon = format.indexOf(':', p);
+      if (colon != -1) {
+        int endIndex = Math.min(colon + 2, format.length());
+        matcher = NAMED_ARGUMENT.matcher(format.substring(p, endIndex));
+      }
+      if (matcher != null && matcher.lookingAt()) {
+        String argumentName = matcher.group("argumentName");
+        char formatChar = matcher.group("typeChar").charAt(0);
+        parts.add(Part.argument(formatChar, -1, false, null, argumentName));
+        p += matcher.regionEnd();
+      } else {
+        if (p >= format.length() - 1) {
+          return new CodeTemplate(format, true, parts, "dangling $ at end");
+        }
+        if (!isNoArgPlaceholder(format.charAt(p + 1))) {
+          return new CodeTemplate(format, true, parts, String.format(
+              "unknown format $%s at %s in '%s'", format.charAt(p + 1), p + 1, format));
+        }
+        parts.add(Part.noArgument(format.charAt(p + 1)));
+        p += 2;
+      }
+    }
+
+    return new CodeTemplate(format, true, parts, null);
+  }
+
+  private static boolean isNoArgPlaceholder(char c) {
+    return c == '$' || c == '>' || c == '<' || c == '[' || c == ']' || c == 'W' || c == 'Z';
+  }
+
+  private static boolean isArgumentType(char c) {
+    return c == 'N' || c == 'L' || c == 'S' || c == 'T';
+  }
+
+  /** Returns the format part of the placeholder {@code $c}, sharing the common ones. */
+  static String placeholder(char c) {
+    switch (c) {
+      case 'L': return "$L";
+      case 'N': return "$N";
+      case 'S': return "$S";
+      case 'T': return "$T";
+      case '$': return "$$";
+      case '>': return "$>";
+      case '<': return "$<";
+      case '[': return "$[";
+      case ']': return "$]";
+      case 'W': return "$W";
+      case 'Z': return "$Z";
+      default: return "$" + c;
+    }
+  }
+
+  @Override public String toString() {
+    return format;
+  }
+
+  /** A format part, and the argument it takes if it is a placeholder like {@code $L}. */
+  static final class Part {
+    /** The character of the placeholder, or {@link CodeBlock#TEXT}. */
+    final char type;
+    /** The text of a text part. */
+    final String text;
+    final boolean takesArgument;
+    /** The index of the argument. Only for positional templates. */
+    final int index;
+    final boolean indexed;
+    /** The placeholder as written in the format string, like {@code $2L}. */
+    final String source;
+    /** The name of the argument. Only for named templates. */
+    final String name;
+
+    private Part(char type, String text, boolean takesArgument, int index, boolean indexed,
+        String source, String name) {
+      this.type = type;
+      this.text = text;
+      this.takesArgument = takesArgument;
+      this.index = index;
+      this.indexed = indexed;
+      this.source = source;
+      this.name = name;
+    }
+
+    static Part text(String text) {
+      return new Part(CodeBlock.TEXT, text, false, -1, false, null, null);
+    }
+
+    static Part noArgument(char type) {
+      return new Part(type, null, false, -1, false, null, null);
+    }
+
+    static Part argument(char type, int index, boolean indexed, String source, String name) {
+      return new Part(type, null, true, index, indexed, source, name);
+    }
+  }
+}
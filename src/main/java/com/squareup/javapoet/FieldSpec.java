@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Modifier;
@@ -37,6 +38,10 @@ public final class FieldSpec {
   public final List<AnnotationSpec> annotations;
   public final Set<Modifier> modifiers;
   public final CodeBlock initializer;
+  /** Lazily computed hash code of this field, or 0. */
+  private int cachedHashCode;
+  /** The rendered field, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
   private static final ITypeNameStaticAdapter TYPE_NAME_STATIC_ADAPTER = new TypeNameStaticAdapter();
 
   private FieldSpec(Builder builder) {
@@ -70,22 +75,28 @@ public final class FieldSpec {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    FieldSpec that = (FieldSpec) o;
+    return hashCode() == that.hashCode()
+        && name.equals(that.name)
+        && type.equals(that.type)
+        && modifiers.equals(that.modifiers)
+        && annotations.equals(that.annotations)
+        && javadoc.equals(that.javadoc)
+        && initializer.equals(that.initializer);
   }
 
   @Override public int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      result = Objects.hash(type, name, javadoc, annotations,
+          Util.modifiersHashCode(modifiers), initializer);
+      cachedHashCode = result;
+    }
+    return result;
   }
 
   @Override public String toString() {
-    StringBuilder out = new StringBuilder();
-    try {
-      CodeWriter codeWriter = new CodeWriter(out);
-      emit(codeWriter, Collections.emptySet());
-      return out.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
-    }
+    return rendered.get(out -> emit(new CodeWriter(out), Collections.emptySet()));
   }
 
   public static Builder builder(TypeNameProvider type, String name, Modifier... modifiers) {
@@ -0,0 +1,290 @@
+package com.squareup.javapoet;
+
+import com.squareup.javapoet.codewriter.CodeWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import javax.lang.model.element.Modifier;
+
+/**
+ * Collects the types a file needs to import without emitting it. This visits the types referenced
+ * by a {@link TypeSpec} in the order {@link TypeSpec#emit} emits them, keeping track of the types
+ * and type variables in scope, but skips the text around them.
+ *
+ * <p>Given a pool, the members of each named type are visited in parallel, each by a fork of the
+ * analyzer. The types they reference are merged in declaration order, as if visited one by one.
+ */
+final class ImportAnalyzer {
+  private final CodeWriter codeWriter;
+  private final ForkJoinPool pool;
+  private boolean javadoc;
+  private boolean complete = true;
+
+  ImportAnalyzer(Set<String> staticImports, Set<String> alwaysQualify, ForkJoinPool pool) {
+    // Only tracks scopes and imports. Nothing is written.
+    this.codeWriter = new CodeWriter(new StringBuilder(), "", staticImports, alwaysQualify);
+    this.pool = pool;
+  }
+
+  private ImportAnalyzer(ImportAnalyzer parent) {
+    this.codeWriter = parent.codeWriter.fork(new StringBuilder());
+    this.pool = parent.pool;
+  }
+
+  /**
+   * Returns the imports for {@code typeSpec} in {@code packageName}, or null if they can't be
+   * known without emitting it. That is the case when it uses a custom {@link AnnotationFormatter}.
+   */
+  Map<String, ClassName> suggestedImports(String packageName, CodeBlock fileComment,
+      TypeSpec typeSpec) throws IOException {
+    codeWriter.pushPackage(packageName);
+    try {
+      code(fileComment);
+      type(typeSpec, null);
+    } catch (UncheckedIOException e) {
+      throw e.getCause(); // Interrupted while visiting members in parallel.
+    }
+    codeWriter.popPackage();
+    return complete ? codeWriter.suggestedImports() : null;
+  }
+
+  private void type(TypeSpec typeSpec, String enumName) {
+    if (enumName != null) {
+      javadoc(typeSpec.javadoc);
+      annotations(typeSpec.annotations);
+      code(typeSpec.anonymousTypeArguments);
+      if (typeSpec.fieldSpecs.isEmpty() && typeSpec.methodSpecs.isEmpty()
+          && typeSpec.typeSpecs.isEmpty()) {
+        return;
+      }
+    } else if (typeSpec.anonymousTypeArguments != null) {
+      typeName(!typeSpec.superinterfaces.isEmpty()
+          ? typeSpec.superinterfaces.get(0)
+          : typeSpec.superclass);
+      code(typeSpec.anonymousTypeArguments);
+    } else {
+      codeWriter.pushType(new TypeSpec(typeSpec));
+      javadoc(typeSpec.javadoc);
+      annotations(typeSpec.annotations);
+      typeVariables(typeSpec.typeVariables);
+      if (typeSpec.kind == TypeSpec.Kind.INTERFACE) {
+        typeNames(typeSpec.superinterfaces);
+      } else {
+        if (!typeSpec.superclass.equals(ClassName.OBJECT)) {
+          typeName(typeSpec.superclass);
+        }
+        typeNames(typeSpec.superinterfaces);
+      }
+      codeWriter.popType();
+    }
+
+    codeWriter.pushType(typeSpec);
+    for (Map.Entry<String, TypeSpec> enumConstant : typeSpec.enumConstants.entrySet()) {
+      type(enumConstant.getValue(), enumConstant.getKey());
+    }
+    List<Member> members = new ArrayList<>();
+    for (FieldSpec fieldSpec : typeSpec.fieldSpecs) {
+      if (fieldSpec.hasModifier(Modifier.STATIC)) members.add(analyzer -> analyzer.field(fieldSpec));
+    }
+    members.add(analyzer -> analyzer.code(typeSpec.staticBlock));
+    for (FieldSpec fieldSpec : typeSpec.fieldSpecs) {
+      if (!fieldSpec.hasModifier(Modifier.STATIC)) members.add(analyzer -> analyzer.field(fieldSpec));
+    }
+    members.add(analyzer -> analyzer.code(typeSpec.initializerBlock));
+    for (MethodSpec methodSpec : typeSpec.methodSpecs) {
+      if (methodSpec.isConstructor()) members.add(analyzer -> analyzer.method(methodSpec));
+    }
+    for (MethodSpec methodSpec : typeSpec.methodSpecs) {
+      if (!methodSpec.isConstructor()) members.add(analyzer -> analyzer.method(methodSpec));
+    }
+    for (TypeSpec nestedType : typeSpec.typeSpecs) {
+      members.add(analyzer -> analyzer.type(nestedType, null));
+    }
+    members(members, enumName == null && typeSpec.anonymousTypeArguments == null
+        && typeSpec.rendersMembersInParallel());
+    codeWriter.popType();
+    codeWriter.popTypeVariables(typeSpec.typeVariables);
+  }
+
+  /**
+   * Visits {@code members} in order. They're visited in parallel if there's a pool and {@code
+   * parallel} is true, and what they reference is merged in order.
+   */
+  private void members(List<Member> members, boolean parallel) {
+    if (pool == null || !parallel) {
+      for (Member member : members) {
+        member.visit(this);
+      }
+      return;
+    }
+
+    List<Callable<ImportAnalyzer>> forks = new ArrayList<>(members.size());
+    for (Member member : members) {
+      ImportAnalyzer fork = new ImportAnalyzer(this);
+      forks.add(() -> {
+        member.visit(fork);
+        return fork;
+      });
+    }
+    List<ImportAnalyzer> visited;
+    try {
+      visited = Util.invokeAll(pool, forks);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (ImportAnalyzer fork : visited) {
+      codeWriter.addReferencesFrom(fork.codeWriter);
+      complete &= fork.complete;
+    }
+  }
+
+  private interface Member {
+    void visit(ImportAnalyzer analyzer);
+  }
+
+  private void field(FieldSpec fieldSpec) {
+    javadoc(fieldSpec.javadoc);
+    annotations(fieldSpec.annotations);
+    typeName(fieldSpec.type);
+    code(fieldSpec.initializer);
+  }
+
+  private void method(MethodSpec methodSpec) {
+    javadoc(methodSpec.javadoc);
+    for (ParameterSpec parameter : methodSpec.parameters) {
+      javadoc(parameter.javadoc);
+    }
+    annotations(methodSpec.annotations);
+    typeVariables(methodSpec.typeVariables);
+    if (!methodSpec.isConstructor()) {
+      typeName(methodSpec.typeNameProvider);
+    }
+    for (ParameterSpec parameter : methodSpec.parameters) {
+      annotations(parameter.annotations);
+      typeName(parameter.type);
+    }
+    code(methodSpec.defaultValue);
+    for (TypeNameProvider exception : methodSpec.exceptions) {
+      typeName(exception);
+    }
+    if (!methodSpec.hasModifier(Modifier.ABSTRACT)) {
+      code(methodSpec.code);
+    }
+    codeWriter.popTypeVariables(methodSpec.typeVariables);
+  }
+
+  private void typeVariables(List<TypeVariableName> typeVariables) {
+    codeWriter.pushTypeVariables(typeVariables);
+    for (TypeVariableName typeVariable : typeVariables) {
+      annotations(typeVariable.annotations);
+      typeNames(typeVariable.bounds);
+    }
+  }
+
+  private void annotations(List<AnnotationSpec> annotations) {
+    for (AnnotationSpec annotation : annotations) {
+      if (!annotation.hasDefaultFormatter()) {
+        complete = false;
+        return;
+      }
+      typeName(annotation.type);
+      for (List<CodeBlock> values : annotation.members.values()) {
+        for (CodeBlock value : values) {
+          code(value);
+        }
+      }
+    }
+  }
+
+  private void javadoc(CodeBlock codeBlock) {
+    if (codeBlock.isEmpty()) return;
+    javadoc = true;
+    try {
+      code(codeBlock);
+    } finally {
+      javadoc = false;
+    }
+  }
+
+  private void code(CodeBlock codeBlock) {
+    if (codeBlock == null) return;
+    for (Object reference : codeBlock.references()) {
+      if (reference instanceof CodeBlock.TypeReference) {
+        CodeBlock.TypeReference typeReference = (CodeBlock.TypeReference) reference;
+        if (typeReference.followingPart == null || !codeWriter.isStaticallyImported(
+            (ClassName) typeReference.type, typeReference.followingPart)) {
+          typeName(typeReference.type);
+        }
+      } else if (reference instanceof TypeSpec) {
+        type((TypeSpec) reference, null);
+      } else if (reference instanceof AnnotationSpec) {
+        annotations(Collections.singletonList((AnnotationSpec) reference));
+      } else {
+        code((CodeBlock) reference);
+      }
+    }
+  }
+
+  private void typeNames(List<TypeName> typeNames) {
+    for (TypeName typeName : typeNames) {
+      typeName(typeName);
+    }
+  }
+
+  private void typeName(TypeNameProvider typeNameProvider) {
+    if (typeNameProvider instanceof ClassName) {
+      className((ClassName) typeNameProvider);
+    } else if (typeNameProvider instanceof ParameterizedTypeName) {
+      ParameterizedTypeName parameterizedTypeName = (ParameterizedTypeName) typeNameProvider;
+      if (parameterizedTypeName.enclosingType != null) {
+        typeName(parameterizedTypeName.enclosingType);
+        annotations(parameterizedTypeName.annotations);
+      } else {
+        className(parameterizedTypeName.rawType);
+      }
+      typeNames(parameterizedTypeName.typeArguments);
+    } else if (typeNameProvider instanceof ArrayTypeName) {
+      TypeName componentType = ((ArrayTypeName) typeNameProvider).componentType;
+      while (componentType instanceof ArrayTypeName) {
+        componentType = ((ArrayTypeName) componentType).componentType;
+      }
+      typeName(componentType);
+      for (TypeName arrayType = (TypeName) typeNameProvider; arrayType instanceof ArrayTypeName;
+          arrayType = ((ArrayTypeName) arrayType).componentType) {
+        annotations(arrayType.annotations);
+      }
+    } else if (typeNameProvider instanceof WildcardTypeName) {
+      WildcardTypeName wildcardTypeName = (WildcardTypeName) typeNameProvider;
+      if (wildcardTypeName.lowerBounds.size() == 1) {
+        typeName(wildcardTypeName.lowerBounds.get(0));
+      } else if (!wildcardTypeName.upperBounds.get(0).equals(TypeName.OBJECT)) {
+        typeName(wildcardTypeName.upperBounds.get(0));
+      }
+    } else if (typeNameProvider instanceof TypeName) {
+      annotations(((TypeName) typeNameProvider).annotations);
+    } else {
+      complete = false;
+    }
+  }
+
+  /** Mirrors {@link ClassName#emit}, which looks up the outermost class it must emit. */
+  private void className(ClassName className) {
+    boolean looked = false;
+    for (ClassName c : className.enclosingClasses()) {
+      if (looked) {
+        annotations(c.annotations);
+      } else if (c.isAnnotated() || c == className) {
+        codeWriter.referenceType(c, javadoc);
+        annotations(c.annotations);
+        looked = true;
+      }
+    }
+  }
+}
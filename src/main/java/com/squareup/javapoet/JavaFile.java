@@ -18,31 +18,49 @@ package com.squareup.javapoet;
 import com.squareup.javapoet.codewriter.CodeWriter;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import javax.annotation.processing.Filer;
 import javax.lang.model.element.Element;
+import javax.lang.model.util.Elements;
 import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.SimpleJavaFileObject;
 
 import static com.squareup.javapoet.Util.checkArgument;
 import static com.squareup.javapoet.Util.checkNotNull;
+import static com.squareup.javapoet.Util.checkState;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /** A Java file containing a single top level class. */
 public final class JavaFile {
@@ -65,6 +83,10 @@ public final class JavaFile {
   private final Set<String> staticImports;
   private final Set<String> alwaysQualify;
   private final String indent;
+  private final Map<String, ClassName> declaredImports;
+  private final ForkJoinPool memberPool;
+  /** The rendered file, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
 
   private JavaFile(Builder builder) {
     this.fileComment = builder.fileComment.build();
@@ -73,10 +95,23 @@ public final class JavaFile {
     this.skipJavaLangImports = builder.skipJavaLangImports;
     this.staticImports = Util.immutableSet(builder.staticImports);
     this.indent = builder.indent;
+    this.memberPool = builder.memberPool;
 
     Set<String> alwaysQualifiedNames = new LinkedHashSet<>();
     fillAlwaysQualifiedNames(builder.typeSpec, alwaysQualifiedNames);
     this.alwaysQualify = Util.immutableSet(alwaysQualifiedNames);
+
+    if (builder.declaredImports != null) {
+      // Importing a type named like a type of this file would conflict with its declaration.
+      Set<String> typeNames = new LinkedHashSet<>();
+      fillTypeNames(builder.typeSpec, typeNames);
+      Map<String, ClassName> declaredImports = new LinkedHashMap<>(builder.declaredImports);
+      declaredImports.keySet().removeAll(alwaysQualify);
+      declaredImports.keySet().removeAll(typeNames);
+      this.declaredImports = Collections.unmodifiableMap(declaredImports);
+    } else {
+      this.declaredImports = null;
+    }
   }
 
   private void fillAlwaysQualifiedNames(TypeSpec spec, Set<String> alwaysQualifiedNames) {
@@ -86,21 +121,46 @@ public final class JavaFile {
     }
   }
 
+  private void fillTypeNames(TypeSpec spec, Set<String> typeNames) {
+    typeNames.add(spec.name);
+    for (TypeSpec nested : spec.typeSpecs) {
+      fillTypeNames(nested, typeNames);
+    }
+  }
+
   public void writeTo(Appendable out) throws IOException {
-    // First pass: emit the entire class, just to collect the types we'll need to import.
-    CodeWriter importsCollector = new CodeWriter(
-        NULL_APPENDABLE,
-        indent,
-        staticImports,
-        alwaysQualify
-    );
+    writeTo(CodeSink.of(out));
+  }
+
+  /**
+   * Writes this to {@code out}. A sink that buffers what it's written, like one from {@link
+   * CodeSink#encoding}, must be flushed or closed afterwards.
+   */
+  public void writeTo(CodeSink out) throws IOException {
+    if (declaredImports != null) {
+      // The imports are known up front, so the code can be written straight away.
+      emit(new CodeWriter(out, indent, declaredImports, staticImports, alwaysQualify)
+          .renderMembersOn(memberPool));
+      return;
+    }
+
+    // Find the imports without rendering any text, then write the code in a single pass.
+    Map<String, ClassName> analyzedImports
+        = new ImportAnalyzer(staticImports, alwaysQualify, memberPool)
+            .suggestedImports(packageName, fileComment, typeSpec);
+    if (analyzedImports != null) {
+      emit(new CodeWriter(out, indent, analyzedImports, staticImports, alwaysQualify)
+          .renderMembersOn(memberPool));
+      return;
+    }
+
+    // Custom annotation formatters can only be analyzed by emitting them. Emit the entire file
+    // once just to collect the types we'll need to import, then write it with the imports.
+    CodeWriter importsCollector
+        = new CodeWriter(NULL_APPENDABLE, indent, staticImports, alwaysQualify);
     emit(importsCollector);
     Map<String, ClassName> suggestedImports = importsCollector.suggestedImports();
-
-    // Second pass: write the code, taking advantage of the imports.
-    CodeWriter codeWriter
-        = new CodeWriter(out, indent, suggestedImports, staticImports, alwaysQualify);
-    emit(codeWriter);
+    emit(new CodeWriter(out, indent, suggestedImports, staticImports, alwaysQualify));
   }
 
   /** Writes this to {@code directory} as UTF-8 using the standard directory structure. */
@@ -132,6 +192,56 @@ public final class JavaFile {
   public Path writeToPath(Path directory, Charset charset) throws IOException {
     checkArgument(Files.notExists(directory) || Files.isDirectory(directory),
         "path %s exists but is not a directory.", directory);
+    return writeToPackageDirectory(packageDirectory(directory, packageName), charset);
+  }
+
+  /**
+   * Writes this to {@code directory} as UTF-8 using the standard directory structure, unless the
+   * file there already has the same content. See {@link #writeIfChanged(Path, Charset)}.
+   */
+  public WriteResult writeIfChanged(Path directory) throws IOException {
+    return writeIfChanged(directory, UTF_8);
+  }
+
+  /**
+   * Writes this to {@code directory} with the provided {@code charset} using the standard directory
+   * structure, unless the file there already has the same content. An unchanged file is left
+   * alone, keeping its modification time, so incremental builds don't see it as changed.
+   *
+   * <p>The rendered file is compared with the existing one by length first, and only read when the
+   * lengths are equal.
+   */
+  public WriteResult writeIfChanged(Path directory, Charset charset) throws IOException {
+    checkArgument(Files.notExists(directory) || Files.isDirectory(directory),
+        "path %s exists but is not a directory.", directory);
+    Path outputPath = packageDirectory(directory, packageName).resolve(typeSpec.name + ".java");
+    byte[] content = toString().getBytes(charset);
+    if (hasContent(outputPath, content)) {
+      return new WriteResult(this, outputPath, null, true);
+    }
+    Files.write(outputPath, content);
+    return new WriteResult(this, outputPath, null, false);
+  }
+
+  private static boolean hasContent(Path path, byte[] content) throws IOException {
+    if (!Files.isRegularFile(path) || Files.size(path) != content.length) {
+      return false;
+    }
+    try (InputStream in = Files.newInputStream(path)) {
+      byte[] buffer = new byte[8192];
+      int offset = 0;
+      for (int read; (read = in.read(buffer)) != -1; offset += read) {
+        if (offset + read > content.length) return false;
+        for (int i = 0; i < read; i++) {
+          if (buffer[i] != content[offset + i]) return false;
+        }
+      }
+      return offset == content.length;
+    }
+  }
+
+  /** Returns the directory of {@code packageName} in {@code directory}, creating it if needed. */
+  private static Path packageDirectory(Path directory, String packageName) throws IOException {
     Path outputDirectory = directory;
     if (!packageName.isEmpty()) {
       for (String packageComponent : packageName.split("\\.")) {
@@ -139,15 +249,87 @@ public final class JavaFile {
       }
       Files.createDirectories(outputDirectory);
     }
+    return outputDirectory;
+  }
 
+  private Path writeToPackageDirectory(Path outputDirectory, Charset charset) throws IOException {
     Path outputPath = outputDirectory.resolve(typeSpec.name + ".java");
-    try (Writer writer = new OutputStreamWriter(Files.newOutputStream(outputPath), charset)) {
-      writeTo(writer);
+    try (WritableByteChannel channel = Files.newByteChannel(outputPath, WRITE, CREATE, TRUNCATE_EXISTING);
+        CodeSink sink = CodeSink.encoding(channel, charset)) {
+      writeTo(sink);
     }
-
     return outputPath;
   }
 
+  /**
+   * Writes {@code javaFiles} to {@code directory} as UTF-8 using the standard directory structure,
+   * rendering them concurrently on {@code executor}. See {@link #writeAll(Collection, Path, Charset,
+   * Executor)}.
+   */
+  public static List<WriteResult> writeAll(Collection<JavaFile> javaFiles, Path directory,
+      Executor executor) {
+    return writeAll(javaFiles, directory, UTF_8, executor);
+  }
+
+  /**
+   * Writes {@code javaFiles} to {@code directory} with the provided {@code charset} using the
+   * standard directory structure, rendering them concurrently on {@code executor}. The directory of
+   * each package is created once, however many files it has. Any executor works, including one
+   * that runs each task on a new thread.
+   *
+   * <p>Returns a result for each file, in the order of {@code javaFiles}. A file that couldn't be
+   * written doesn't stop the others; its result holds the failure instead of the path. Files are
+   * written to distinct paths: a file with the same package and type name as an earlier one isn't
+   * written, and fails with an {@link IllegalArgumentException}.
+   */
+  public static List<WriteResult> writeAll(Collection<JavaFile> javaFiles, Path directory,
+      Charset charset, Executor executor) {
+    checkNotNull(javaFiles, "javaFiles == null");
+    checkNotNull(charset, "charset == null");
+    checkNotNull(executor, "executor == null");
+    checkArgument(Files.notExists(directory) || Files.isDirectory(directory),
+        "path %s exists but is not a directory.", directory);
+
+    Map<String, CompletableFuture<Path>> packageDirectories = new HashMap<>();
+    Set<String> fileNames = new HashSet<>();
+    List<CompletableFuture<WriteResult>> pending = new ArrayList<>(javaFiles.size());
+    for (JavaFile javaFile : javaFiles) {
+      String fileName = javaFile.packageName.isEmpty()
+          ? javaFile.typeSpec.name
+          : javaFile.packageName + "." + javaFile.typeSpec.name;
+      if (!fileNames.add(fileName)) {
+        // Writing it concurrently with the earlier file would interleave their contents.
+        Exception failure = new IllegalArgumentException("duplicate file: " + fileName);
+        pending.add(CompletableFuture.completedFuture(
+            new WriteResult(javaFile, null, failure, false)));
+        continue;
+      }
+      CompletableFuture<Path> packageDirectory = packageDirectories.computeIfAbsent(
+          javaFile.packageName, packageName -> CompletableFuture.supplyAsync(() -> {
+            try {
+              return packageDirectory(directory, packageName);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }, executor));
+      pending.add(packageDirectory
+          .thenApplyAsync(outputDirectory -> {
+            try {
+              return javaFile.writeToPackageDirectory(outputDirectory, charset);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }, executor)
+          .handle((path, failure) -> new WriteResult(javaFile, path, failure, false)));
+    }
+
+    List<WriteResult> results = new ArrayList<>(pending.size());
+    for (CompletableFuture<WriteResult> result : pending) {
+      results.add(result.join());
+    }
+    return results;
+  }
+
   /** Writes this to {@code directory} as UTF-8 using the standard directory structure. */
   public void writeTo(File directory) throws IOException {
     writeTo(directory.toPath());
@@ -162,16 +344,39 @@ public final class JavaFile {
     return outputPath.toFile();
   }
 
-  /** Writes this to {@code filer}. */
+  /**
+   * Writes this to {@code filer}. The type must not have {@linkplain OriginatingElement originating
+   * element handles}; use {@link #writeTo(Filer, Elements)} to resolve them.
+   */
   public void writeTo(Filer filer) throws IOException {
+    checkState(typeSpec.originatingElementHandles.isEmpty(),
+        "%s has originating element handles, which need Elements to resolve", typeSpec.name);
+    writeTo(filer, typeSpec.originatingElements);
+  }
+
+  /**
+   * Writes this to {@code filer}, passing the originating elements of the type and those its
+   * {@linkplain OriginatingElement handles} resolve to in {@code elements}. Handles that don't
+   * resolve are skipped.
+   */
+  public void writeTo(Filer filer, Elements elements) throws IOException {
+    checkNotNull(elements, "elements == null");
+    List<Element> originatingElements = new ArrayList<>(typeSpec.originatingElements);
+    for (OriginatingElement handle : typeSpec.originatingElementHandles) {
+      Element element = handle.resolve(elements);
+      if (element != null) originatingElements.add(element);
+    }
+    writeTo(filer, originatingElements);
+  }
+
+  private void writeTo(Filer filer, List<Element> originatingElements) throws IOException {
     String fileName = packageName.isEmpty()
         ? typeSpec.name
         : packageName + "." + typeSpec.name;
-    List<Element> originatingElements = typeSpec.originatingElements;
     JavaFileObject filerSourceFile = filer.createSourceFile(fileName,
         originatingElements.toArray(new Element[originatingElements.size()]));
-    try (Writer writer = filerSourceFile.openWriter()) {
-      writeTo(writer);
+    try (CodeSink sink = CodeSink.buffered(filerSourceFile.openWriter())) {
+      writeTo(sink);
     } catch (Exception e) {
       filerSourceFile.delete();
       throw e;
@@ -180,7 +385,13 @@ public final class JavaFile {
 
   private void emit(CodeWriter codeWriter) throws IOException {
     codeWriter.pushPackage(packageName);
+    emitPreamble(codeWriter);
+    emitImports(codeWriter);
+    typeSpec.emit(codeWriter, null, Collections.emptySet());
+    codeWriter.popPackage();
+  }
 
+  private void emitPreamble(CodeWriter codeWriter) throws IOException {
     if (!fileComment.isEmpty()) {
       codeWriter.emitComment(fileComment);
     }
@@ -196,7 +407,9 @@ public final class JavaFile {
       }
       codeWriter.emit("\n");
     }
+  }
 
+  private void emitImports(CodeWriter codeWriter) throws IOException {
     int importedTypesCount = 0;
     for (ClassName className : new TreeSet<>(codeWriter.importedTypes().values())) {
       if (skipJavaLangImports
@@ -211,10 +424,6 @@ public final class JavaFile {
     if (importedTypesCount > 0) {
       codeWriter.emit("\n");
     }
-
-    typeSpec.emit(codeWriter, null, Collections.emptySet());
-
-    codeWriter.popPackage();
   }
 
   @Override public boolean equals(Object o) {
@@ -229,13 +438,7 @@ public final class JavaFile {
   }
 
   @Override public String toString() {
-    try {
-      StringBuilder result = new StringBuilder();
-      writeTo(result);
-      return result.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
-    }
+    return rendered.get(this::writeTo);
   }
 
   public JavaFileObject toJavaFileObject() {
@@ -245,11 +448,28 @@ public final class JavaFile {
         + Kind.SOURCE.extension);
     return new SimpleJavaFileObject(uri, Kind.SOURCE) {
       private final long lastModified = System.currentTimeMillis();
-      @Override public String getCharContent(boolean ignoreEncodingErrors) {
-        return JavaFile.this.toString();
+      /** The file encoded as UTF-8, rendered on first access. */
+      private volatile byte[] content;
+
+      private byte[] content() throws IOException {
+        byte[] result = content;
+        if (result == null) {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          try (CodeSink sink = CodeSink.encoding(Channels.newChannel(bytes), UTF_8)) {
+            writeTo(sink);
+          }
+          content = result = bytes.toByteArray();
+        }
+        return result;
+      }
+      @Override public String getCharContent(boolean ignoreEncodingErrors) throws IOException {
+        return new String(content(), UTF_8);
       }
       @Override public InputStream openInputStream() throws IOException {
-        return new ByteArrayInputStream(getCharContent(true).getBytes(UTF_8));
+        return new ByteArrayInputStream(content());
+      }
+      @Override public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+        return new InputStreamReader(openInputStream(), UTF_8);
       }
       @Override public long getLastModified() {
         return lastModified;
@@ -268,15 +488,52 @@ public final class JavaFile {
     builder.fileComment.add(fileComment);
     builder.skipJavaLangImports = skipJavaLangImports;
     builder.indent = indent;
+    builder.memberPool = memberPool;
+    if (declaredImports != null) {
+      builder.declaredImports = new LinkedHashMap<>(declaredImports);
+    }
     return builder;
   }
 
+  /** The outcome of writing a file with {@link #writeAll} or {@link #writeIfChanged}. */
+  public static final class WriteResult {
+    public final JavaFile javaFile;
+    /** The path the file was written to, or null if it failed. */
+    public final Path path;
+    /** Why the file couldn't be written, or null if it was. */
+    public final Exception failure;
+    /** True if the file already had the rendered content, so it wasn't written again. */
+    public final boolean unchanged;
+
+    private WriteResult(JavaFile javaFile, Path path, Throwable failure, boolean unchanged) {
+      if (failure instanceof CompletionException && failure.getCause() != null) {
+        failure = failure.getCause();
+      }
+      if (failure instanceof UncheckedIOException) {
+        failure = failure.getCause();
+      }
+      if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      this.javaFile = javaFile;
+      this.path = path;
+      this.failure = (Exception) failure;
+      this.unchanged = unchanged;
+    }
+
+    public boolean isWritten() {
+      return failure == null;
+    }
+  }
+
   public static final class Builder {
     private final String packageName;
     private final TypeSpec typeSpec;
     private final CodeBlock.Builder fileComment = CodeBlock.builder();
     private boolean skipJavaLangImports;
     private String indent = "  ";
+    private Map<String, ClassName> declaredImports;
+    private ForkJoinPool memberPool;
 
     public final Set<String> staticImports = new TreeSet<>();
 
@@ -322,6 +579,51 @@ public final class JavaFile {
       return this;
     }
 
+    /**
+     * Call this to declare every type the file imports, instead of having JavaPoet collect them.
+     *
+     * <p>By default, JavaPoet emits the type once to find the types it needs to import before writing
+     * it. When the imports are declared the file is written in a single pass, and types that aren't
+     * declared are emitted with their fully qualified names. Each declared type is imported, whether
+     * it's referenced or not, unless it's named like a type declared in this file or one that's
+     * always qualified.
+     */
+    public Builder declareImports(Iterable<ClassName> classNames) {
+      checkArgument(classNames != null, "classNames == null");
+      if (declaredImports == null) {
+        declaredImports = new LinkedHashMap<>();
+      }
+      for (ClassName className : classNames) {
+        checkArgument(className != null, "classNames contain null");
+        ClassName topLevelClassName = className.topLevelClassName().withoutAnnotations();
+        ClassName replaced = declaredImports.putIfAbsent(topLevelClassName.simpleName(), topLevelClassName);
+        checkArgument(replaced == null || replaced.equals(topLevelClassName),
+            "conflicting imports: %s and %s", replaced, topLevelClassName);
+      }
+      return this;
+    }
+
+    public Builder declareImports(ClassName... classNames) {
+      checkArgument(classNames != null, "classNames == null");
+      return declareImports(Arrays.asList(classNames));
+    }
+
+    /**
+     * Call this to render the members of large types in parallel on {@code pool}, or with null to
+     * render them one after another, the default.
+     *
+     * <p>Once the imports are known, each field, method and nested type renders the same no matter
+     * what comes before it. In this mode they're rendered into separate buffers on {@code pool},
+     * which are written in declaration order. The imports are collected in parallel the same way.
+     * The output is identical to rendering them one after another. Types with fewer than {@value
+     * TypeSpec#PARALLEL_MEMBER_THRESHOLD} members, counting those of their nested types, and files
+     * with custom annotation formatters are rendered one member after another.
+     */
+    public Builder renderMembersOn(ForkJoinPool pool) {
+      this.memberPool = pool;
+      return this;
+    }
+
     public Builder indent(String indent) {
       this.indent = indent;
       return this;
@@ -20,11 +20,12 @@ import java.io.IOException;
 import static com.squareup.javapoet.Util.checkNotNull;
 
 /**
- * Implements soft line wrapping on an appendable. To use, append characters using {@link #append}
- * or soft-wrapping spaces using {@link #wrappingSpace}.
+ * Implements soft line wrapping on a {@link CodeSink}. To use, append characters using {@link
+ * #append} or soft-wrapping spaces using {@link #wrappingSpace}.
  */
 public final class LineWrapper {
-  private final RecordingAppendable out;
+  private final CodeSink out;
+  private char lastChar = Character.MIN_VALUE;
   private final String indent;
   private final int columnLimit;
   private boolean closed;
@@ -47,42 +48,55 @@ public final class LineWrapper {
   private FlushType nextFlush;
 
   public LineWrapper(Appendable out, String indent, int columnLimit) {
-    checkNotNull(out, "out == null");
-    this.out = new RecordingAppendable(out);
+    this(CodeSink.of(checkNotNull(out, "out == null")), indent, columnLimit);
+  }
+
+  public LineWrapper(CodeSink out, String indent, int columnLimit) {
+    this.out = checkNotNull(out, "out == null");
     this.indent = indent;
     this.columnLimit = columnLimit;
   }
 
   /** @return the last emitted char or {@link Character#MIN_VALUE} if nothing emitted yet. */
   public char lastChar() {
-    return out.lastChar;
+    return lastChar;
   }
 
   /** Emit {@code s}. This may be buffered to permit line wraps to be inserted. */
   public void append(String s) throws IOException {
+    append(s, 0, s.length());
+  }
+
+  /** Emit the chars of {@code s} from {@code start} to {@code end}, like {@link #append(String)}. */
+  public void append(String s, int start, int end) throws IOException {
     if (closed) throw new IllegalStateException(CLOSED_MESSAGE);
 
+    int length = end - start;
     if (nextFlush != null) {
-      int nextNewline = s.indexOf('\n');
+      int nextNewline = s.indexOf('\n', start);
+      if (nextNewline >= end) nextNewline = -1;
 
       // If s doesn't cause the current line to cross the limit, buffer it and return. We'll decide
       // whether or not we have to wrap it later.
-      if (nextNewline == -1 && column + s.length() <= columnLimit) {
-        buffer.append(s);
-        column += s.length();
+      if (nextNewline == -1 && column + length <= columnLimit) {
+        buffer.append(s, start, end);
+        column += length;
         return;
       }
 
       // Wrap if appending s would overflow the current line.
-      boolean wrap = nextNewline == -1 || column + nextNewline > columnLimit;
+      boolean wrap = nextNewline == -1 || column + nextNewline - start > columnLimit;
       flush(wrap ? FlushType.WRAP : nextFlush);
     }
 
-    out.append(s);
-    int lastNewline = s.lastIndexOf('\n');
-    column = lastNewline != -1
-        ? s.length() - lastNewline - 1
-        : column + s.length();
+    if (end > start) {
+      out.append(s, start, end);
+      lastChar = s.charAt(end - 1);
+    }
+    int lastNewline = end > start ? s.lastIndexOf('\n', end - 1) : -1;
+    column = lastNewline >= start
+        ? end - lastNewline - 1
+        : column + length;
   }
 
   /** Emit either a space or a newline character. */
@@ -116,14 +130,19 @@ public final class LineWrapper {
     switch (flushType) {
       case WRAP:
         out.append('\n');
+        lastChar = '\n';
         for (int i = 0; i < indentLevel; i++) {
           out.append(indent);
         }
+        if (indentLevel > 0 && !indent.isEmpty()) {
+          lastChar = indent.charAt(indent.length() - 1);
+        }
         column = indentLevel * indent.length();
         column += buffer.length();
         break;
       case SPACE:
         out.append(' ');
+        lastChar = ' ';
         break;
       case EMPTY:
         break;
@@ -131,7 +150,10 @@ public final class LineWrapper {
         throw new IllegalArgumentException("Unknown FlushType: " + flushType);
     }
 
-    out.append(buffer);
+    if (buffer.length() > 0) {
+      out.append(buffer);
+      lastChar = buffer.charAt(buffer.length() - 1);
+    }
     buffer.delete(0, buffer.length());
     indentLevel = -1;
     nextFlush = null;
@@ -140,33 +162,4 @@ public final class LineWrapper {
   private enum FlushType {
     WRAP, SPACE, EMPTY;
   }
-
-  /** A delegating {@link Appendable} that records info about the chars passing through it. */
-  static final class RecordingAppendable implements Appendable {
-    private final Appendable delegate;
-
-    char lastChar = Character.MIN_VALUE;
-
-    RecordingAppendable(Appendable delegate) {
-      this.delegate = delegate;
-    }
-
-    @Override public Appendable append(CharSequence csq) throws IOException {
-      int length = csq.length();
-      if (length != 0) {
-        lastChar = csq.charAt(length - 1);
-      }
-      return delegate.append(csq);
-    }
-
-    @Override public Appendable append(CharSequence csq, int start, int end) throws IOException {
-      CharSequence sub = csq.subSequence(start, end);
-      return append(sub);
-    }
-
-    @Override public Appendable append(char c) throws IOException {
-      lastChar = c;
-      return delegate.append(c);
-    }
-  }
 }
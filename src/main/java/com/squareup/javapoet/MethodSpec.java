@@ -25,6 +25,7 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
@@ -43,7 +44,7 @@ import static com.squareup.javapoet.Util.checkState;
 
 /** A generated constructor or method declaration. */
 public final class MethodSpec {
-  private final TypeNameProvider typeNameProvider;
+  final TypeNameProvider typeNameProvider;
   private static final ITypeNameStaticAdapter TYPE_NAME_STATIC_ADAPTER = new TypeNameStaticAdapter();
   static final String CONSTRUCTOR = "<init>";
 
@@ -57,6 +58,10 @@ public final class MethodSpec {
   public final List<TypeNameProvider> exceptions;
   public final CodeBlock code;
   public final CodeBlock defaultValue;
+  /** Lazily computed hash code of this method, or 0. */
+  private int cachedHashCode;
+  /** The rendered method, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
 
   private MethodSpec(Builder builder) {
     CodeBlock block = builder.code.build();
@@ -176,26 +181,54 @@ public final class MethodSpec {
     return name.equals(CONSTRUCTOR);
   }
 
+  /**
+   * Methods are compared by the parts they emit. The javadoc of the parameters is part of the
+   * javadoc of the method.
+   */
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    MethodSpec that = (MethodSpec) o;
+    return hashCode() == that.hashCode()
+        && name.equals(that.name)
+        && Objects.equals(typeNameProvider, that.typeNameProvider)
+        && parameters.equals(that.parameters)
+        && varargs == that.varargs
+        && modifiers.equals(that.modifiers)
+        && annotations.equals(that.annotations)
+        && TypeVariableName.declarationsEqual(typeVariables, that.typeVariables)
+        && exceptions.equals(that.exceptions)
+        && javadoc.equals(that.javadoc)
+        && parameterJavadocsEqual(that)
+        && Objects.equals(emittedDefaultValue(), that.emittedDefaultValue())
+        && code.equals(that.code);
+  }
+
+  private boolean parameterJavadocsEqual(MethodSpec that) {
+    for (int i = 0; i < parameters.size(); i++) {
+      if (!parameters.get(i).javadoc.equals(that.parameters.get(i).javadoc)) return false;
+    }
+    return true;
+  }
+
+  private CodeBlock emittedDefaultValue() {
+    return defaultValue != null && !defaultValue.isEmpty() ? defaultValue : null;
   }
 
   @Override public int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      result = Objects.hash(typeNameProvider, name, javadoc, annotations,
+          Util.modifiersHashCode(modifiers), typeVariables, parameters, varargs, exceptions, code,
+          emittedDefaultValue());
+      cachedHashCode = result;
+    }
+    return result;
   }
 
   @Override public String toString() {
-    StringBuilder out = new StringBuilder();
-    try {
-      CodeWriter codeWriter = new CodeWriter(out);
-      emit(codeWriter, "Constructor", Collections.emptySet());
-      return out.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
-    }
+    return rendered.get(out -> emit(new CodeWriter(out), "Constructor", Collections.emptySet()));
   }
 
   public static Builder methodBuilder(String name) {
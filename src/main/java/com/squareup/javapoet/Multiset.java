@@ -3,24 +3,42 @@ package com.squareup.javapoet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
-// A makeshift multi-set implementation
+// A makeshift multi-set implementation. Counts are kept in mutable cells to avoid boxing them.
 public class Multiset<T> {
-    private final Map<T, Integer> map = new LinkedHashMap<>();
+    private final Map<T, int[]> map = new LinkedHashMap<>();
 
     public void add(T t) {
-        int count = map.getOrDefault(t, 0);
-        map.put(t, count + 1);
+        int[] count = map.get(t);
+        if (count == null) {
+            count = new int[1];
+            map.put(t, count);
+        }
+        count[0]++;
     }
 
     public void remove(T t) {
-        int count = map.getOrDefault(t, 0);
-        if (count == 0) {
+        int[] count = map.get(t);
+        if (count == null || count[0] == 0) {
             throw new IllegalStateException(t + " is not in the multiset");
         }
-        map.put(t, count - 1);
+        count[0]--;
+    }
+
+    /** Adds the elements of {@code other} as many times as they are in it. */
+    public void addAll(Multiset<T> other) {
+        for (Map.Entry<T, int[]> entry : other.map.entrySet()) {
+            if (entry.getValue()[0] == 0) continue;
+            int[] count = map.get(entry.getKey());
+            if (count == null) {
+                count = new int[1];
+                map.put(entry.getKey(), count);
+            }
+            count[0] += entry.getValue()[0];
+        }
     }
 
     public boolean contains(T t) {
-        return map.getOrDefault(t, 0) > 0;
+        int[] count = map.get(t);
+        return count != null && count[0] > 0;
     }
 }
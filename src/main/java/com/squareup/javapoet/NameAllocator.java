@@ -15,11 +15,12 @@
  */
 package com.squareup.javapoet;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.lang.model.SourceVersion;
 
 import static com.squareup.javapoet.Util.checkNotNull;
@@ -74,22 +75,51 @@ import static com.squareup.javapoet.Util.checkNotNull;
  * property. Underscores are also prefixed for names that start with a digit, and used to replace
  * name-unsafe characters like space or dash.
  *
- * <p>When dealing with multiple independent inner scopes, use a {@link #clone()} of the
+ * <p>When dealing with multiple independent inner scopes, use a {@link #newScope()} of the
  * NameAllocator used for the outer scope to further refine name allocation for a specific inner
- * scope.
+ * scope. The scope avoids the outer scope's names and can look up its tags without copying them.
+ *
+ * <p>NameAllocator isn't thread safe. To share one between threads, like when generating the
+ * members of a type in parallel, create it with {@link #concurrent()}.
  */
 public final class NameAllocator implements Cloneable {
+  /** The allocator of the enclosing scope, or null. */
+  private final NameAllocator parent;
+  private final boolean concurrent;
   private final Set<String> allocatedNames;
   private final Map<Object, String> tagToName;
+  /**
+   * The number of underscores to try first when allocating a name from an identifier. Names with
+   * fewer underscores were all taken, so repeated suggestions don't retry them.
+   */
+  private final Map<String, Integer> suffixLengths;
 
   public NameAllocator() {
-    this(new LinkedHashSet<>(), new LinkedHashMap<>());
+    this(null, false);
   }
 
-  private NameAllocator(LinkedHashSet<String> allocatedNames,
-                        LinkedHashMap<Object, String> tagToName) {
-    this.allocatedNames = allocatedNames;
-    this.tagToName = tagToName;
+  private NameAllocator(NameAllocator parent, boolean concurrent) {
+    this.parent = parent;
+    this.concurrent = concurrent;
+    if (concurrent) {
+      this.allocatedNames = ConcurrentHashMap.newKeySet();
+      this.tagToName = new ConcurrentHashMap<>();
+      this.suffixLengths = new ConcurrentHashMap<>();
+    } else {
+      this.allocatedNames = new LinkedHashSet<>();
+      this.tagToName = new LinkedHashMap<>();
+      this.suffixLengths = new HashMap<>();
+    }
+  }
+
+  /**
+   * Returns a NameAllocator that may be used by many threads at once, without locking. Each name
+   * is reserved atomically, so no two threads get the same one, and each gets the name with the
+   * fewest underscores that was free when it asked. A tag may still only be used once. Its scopes
+   * and clones may also be used by many threads.
+   */
+  public static NameAllocator concurrent() {
+    return new NameAllocator(null, true);
   }
 
   /**
@@ -97,7 +127,8 @@ public final class NameAllocator implements Cloneable {
    * other names.
    */
   public String newName(String suggestion) {
-    return newName(suggestion, UUID.randomUUID().toString());
+    checkNotNull(suggestion, "suggestion");
+    return allocate(toJavaIdentifier(suggestion));
   }
 
   /**
@@ -109,25 +140,73 @@ public final class NameAllocator implements Cloneable {
     checkNotNull(suggestion, "suggestion");
     checkNotNull(tag, "tag");
 
-    suggestion = toJavaIdentifier(suggestion);
-
-    while (SourceVersion.isKeyword(suggestion) || !allocatedNames.add(suggestion)) {
-      suggestion = suggestion + "_";
-    }
+    String name = allocate(toJavaIdentifier(suggestion));
 
-    String replaced = tagToName.put(tag, suggestion);
+    String replaced = parent != null ? parent.nameOf(tag) : null;
+    if (replaced == null) replaced = tagToName.putIfAbsent(tag, name);
     if (replaced != null) {
-      tagToName.put(tag, replaced); // Put things back as they were!
       throw new IllegalArgumentException("tag " + tag + " cannot be used for both '" + replaced
-          + "' and '" + suggestion + "'");
+          + "' and '" + name + "'");
     }
 
-    return suggestion;
+    return name;
+  }
+
+  /** Allocates {@code identifier}, with as few underscores appended as needed to make it new. */
+  private String allocate(String identifier) {
+    int suffixLength = suffixLength(identifier);
+    String name = withSuffix(identifier, suffixLength);
+    while (SourceVersion.isKeyword(name)
+        || (parent != null && parent.isAllocated(name))
+        || !allocatedNames.add(name)) {
+      name = withSuffix(identifier, ++suffixLength);
+    }
+    suffixLengths.merge(identifier, suffixLength + 1, Math::max);
+    return name;
+  }
+
+  private int suffixLength(String identifier) {
+    for (NameAllocator scope = this; scope != null; scope = scope.parent) {
+      Integer result = scope.suffixLengths.get(identifier);
+      if (result != null) return result;
+    }
+    return 0;
+  }
+
+  private boolean isAllocated(String name) {
+    for (NameAllocator scope = this; scope != null; scope = scope.parent) {
+      if (scope.allocatedNames.contains(name)) return true;
+    }
+    return false;
+  }
+
+  /** Returns the name of {@code tag} in this scope or an enclosing one, or null. */
+  private String nameOf(Object tag) {
+    for (NameAllocator scope = this; scope != null; scope = scope.parent) {
+      String result = scope.tagToName.get(tag);
+      if (result != null) return result;
+    }
+    return null;
+  }
+
+  private static String withSuffix(String identifier, int suffixLength) {
+    if (suffixLength == 0) return identifier;
+    StringBuilder result = new StringBuilder(identifier.length() + suffixLength).append(identifier);
+    for (int i = 0; i < suffixLength; i++) {
+      result.append('_');
+    }
+    return result.toString();
   }
 
   public static String toJavaIdentifier(String suggestion) {
-    StringBuilder result = new StringBuilder();
-    for (int i = 0; i < suggestion.length(); ) {
+    int valid = validPrefixLength(suggestion);
+    if (valid == suggestion.length()) return suggestion;
+
+    StringBuilder result = new StringBuilder(suggestion.length() + 1);
+    if (valid > 0) {
+      result.append(suggestion, 0, valid);
+    }
+    for (int i = valid; i < suggestion.length(); ) {
       int codePoint = suggestion.codePointAt(i);
       if (i == 0
           && !Character.isJavaIdentifierStart(codePoint)
@@ -142,9 +221,27 @@ public final class NameAllocator implements Cloneable {
     return result.toString();
   }
 
+  /**
+   * Returns the length of the prefix of {@code suggestion} that's a valid Java identifier, or 0 if
+   * it doesn't start with an identifier start.
+   */
+  private static int validPrefixLength(String suggestion) {
+    int i = 0;
+    while (i < suggestion.length()) {
+      int codePoint = suggestion.codePointAt(i);
+      if (i == 0
+          ? !Character.isJavaIdentifierStart(codePoint)
+          : !Character.isJavaIdentifierPart(codePoint)) {
+        break;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return i;
+  }
+
   /** Retrieve a name created with {@link #newName(String, Object)}. */
   public String get(Object tag) {
-    String result = tagToName.get(tag);
+    String result = nameOf(tag);
     if (result == null) {
       throw new IllegalArgumentException("unknown tag: " + tag);
     }
@@ -154,15 +251,27 @@ public final class NameAllocator implements Cloneable {
   /**
    * Create a deep copy of this NameAllocator. Useful to create multiple independent refinements
    * of a NameAllocator to be used in the respective definition of multiples, independently-scoped,
-   * inner code blocks.
+   * inner code blocks. The copy of a {@linkplain #newScope() scope} shares its enclosing scopes.
    *
    * @return A deep copy of this NameAllocator.
    */
   @Override
   public NameAllocator clone() {
-    return new NameAllocator(
-        new LinkedHashSet<>(this.allocatedNames),
-        new LinkedHashMap<>(this.tagToName));
+    NameAllocator result = new NameAllocator(parent, concurrent);
+    result.allocatedNames.addAll(allocatedNames);
+    result.tagToName.putAll(tagToName);
+    result.suffixLengths.putAll(suffixLengths);
+    return result;
+  }
+
+  /**
+   * Returns a NameAllocator for an inner scope of this one. Its names avoid those of this scope
+   * and it can get the names of this scope's tags, but it copies neither: creating a scope takes
+   * constant time, and the names it allocates are dropped with it. Allocate this scope's names
+   * before the inner scope's, as this scope doesn't avoid the names of its inner scopes.
+   */
+  public NameAllocator newScope() {
+    return new NameAllocator(this, concurrent);
   }
 
 }
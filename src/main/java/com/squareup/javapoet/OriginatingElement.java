@@ -0,0 +1,79 @@
+package com.squareup.javapoet;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+
+import static com.squareup.javapoet.Util.checkArgument;
+import static com.squareup.javapoet.Util.checkNotNull;
+
+/**
+ * A handle to the type or package that a generated file originates from. Unlike the element, a
+ * handle only holds a name, so type specs that are kept across rounds of annotation processing
+ * don't keep the compiler's symbols alive. Handles are resolved to elements by {@link
+ * JavaFile#writeTo(javax.annotation.processing.Filer, Elements)}.
+ */
+public final class OriginatingElement {
+  private final boolean isPackage;
+  /** The canonical name of the type, or the name of the package. */
+  public final String name;
+
+  private OriginatingElement(boolean isPackage, String name) {
+    this.isPackage = isPackage;
+    this.name = name;
+  }
+
+  /**
+   * Returns a handle to {@code element} if it's a type or package, or else to the type or package
+   * that encloses it.
+   */
+  public static OriginatingElement of(Element element) {
+    checkNotNull(element, "element == null");
+    for (Element e = element; e != null; e = e.getEnclosingElement()) {
+      if (e instanceof TypeElement) {
+        return new OriginatingElement(false, ((TypeElement) e).getQualifiedName().toString());
+      }
+      if (e instanceof PackageElement) {
+        return new OriginatingElement(true, ((PackageElement) e).getQualifiedName().toString());
+      }
+    }
+    throw new IllegalArgumentException("not in a type or package: " + element);
+  }
+
+  public static OriginatingElement ofType(ClassName className) {
+    checkNotNull(className, "className == null");
+    return new OriginatingElement(false, className.canonicalName());
+  }
+
+  public static OriginatingElement ofPackage(String packageName) {
+    checkNotNull(packageName, "packageName == null");
+    checkArgument(!packageName.isEmpty(), "packageName is empty");
+    return new OriginatingElement(true, packageName);
+  }
+
+  /** Returns true if this is a handle to a package. */
+  public boolean isPackage() {
+    return isPackage;
+  }
+
+  /** Returns the element this is a handle to, or null if {@code elements} doesn't have it. */
+  public Element resolve(Elements elements) {
+    return isPackage ? elements.getPackageElement(name) : elements.getTypeElement(name);
+  }
+
+  @Override public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof OriginatingElement)) return false;
+    OriginatingElement that = (OriginatingElement) o;
+    return isPackage == that.isPackage && name.equals(that.name);
+  }
+
+  @Override public int hashCode() {
+    return name.hashCode() * 2 + (isPackage ? 1 : 0);
+  }
+
+  @Override public String toString() {
+    return (isPackage ? "package " : "") + name;
+  }
+}
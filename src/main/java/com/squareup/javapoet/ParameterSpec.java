@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.ElementKind;
@@ -38,6 +39,10 @@ public final class ParameterSpec {
   public final Set<Modifier> modifiers;
   public final TypeNameProvider type;
   public final CodeBlock javadoc;
+  /** Lazily computed hash code of this parameter, or 0. */
+  private int cachedHashCode;
+  /** The rendered parameter, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
   private static final ITypeNameStaticAdapter TYPE_NAME_STATIC_ADAPTER = new TypeNameStaticAdapter();
 
   private ParameterSpec(Builder builder) {
@@ -63,26 +68,30 @@ public final class ParameterSpec {
     codeWriter.emit(" $L", name);
   }
 
+  /** Parameters are emitted without their javadoc, so that isn't compared. */
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    ParameterSpec that = (ParameterSpec) o;
+    return hashCode() == that.hashCode()
+        && name.equals(that.name)
+        && type.equals(that.type)
+        && modifiers.equals(that.modifiers)
+        && annotations.equals(that.annotations);
   }
 
   @Override public int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      result = Objects.hash(name, annotations, Util.modifiersHashCode(modifiers), type);
+      cachedHashCode = result;
+    }
+    return result;
   }
 
   @Override public String toString() {
-    StringBuilder out = new StringBuilder();
-    try {
-      CodeWriter codeWriter = new CodeWriter(out);
-      emit(codeWriter, false);
-      return out.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
-    }
+    return rendered.get(out -> emit(new CodeWriter(out), false));
   }
 
   public static ParameterSpec get(VariableElement element) {
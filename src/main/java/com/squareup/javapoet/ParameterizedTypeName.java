@@ -31,7 +31,7 @@ import static com.squareup.javapoet.Util.checkArgument;
 import static com.squareup.javapoet.Util.checkNotNull;
 
 public final class ParameterizedTypeName extends TypeName {
-  private final ParameterizedTypeName enclosingType;
+  final ParameterizedTypeName enclosingType;
   public final ClassName rawType;
   public final List<TypeName> typeArguments;
 
@@ -60,6 +60,10 @@ public final class ParameterizedTypeName extends TypeName {
         enclosingType, rawType, typeArguments, concatAnnotations(annotations));
   }
 
+  @Override public ParameterizedTypeName intern() {
+    return TypeNamePool.INSTANCE.intern(this);
+  }
+
   @Override
   public TypeName withoutAnnotations() {
     return new ParameterizedTypeName(
@@ -92,6 +96,32 @@ public final class ParameterizedTypeName extends TypeName {
     return out;
   }
 
+  /**
+   * A nested type is emitted with its own annotations after its enclosing type. Otherwise the raw
+   * type carries them.
+   */
+  @Override boolean equalTo(TypeName o) {
+    ParameterizedTypeName that = (ParameterizedTypeName) o;
+    if (enclosingType != null) {
+      if (!enclosingType.equals(that.enclosingType)
+          || !annotations.equals(that.annotations)
+          || !rawType.simpleName().equals(that.rawType.simpleName())) {
+        return false;
+      }
+    } else if (that.enclosingType != null || !rawType.equals(that.rawType)) {
+      return false;
+    }
+    return typeArguments.equals(that.typeArguments);
+  }
+
+  @Override int computeHashCode() {
+    int result = enclosingType != null
+        ? (enclosingType.hashCode() * 31 + annotations.hashCode()) * 31
+            + rawType.simpleName().hashCode()
+        : rawType.hashCode();
+    return result * 31 + typeArguments.hashCode();
+  }
+
   /**
    * Returns a new {@link ParameterizedTypeName} instance for the specified {@code name} as nested
    * inside this class.
@@ -0,0 +1,45 @@
+package com.squareup.javapoet;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+
+/**
+ * Holds the rendered form of an immutable spec, so that {@code toString()} renders it once. Short
+ * renders are held strongly. Longer ones are held softly, so they can be reclaimed under memory
+ * pressure and rendered again when needed.
+ *
+ * <p>Specs compare and hash by their parts, not by this render, except {@link JavaFile}, whose
+ * {@code equals()} and {@code hashCode()} use {@code toString()}.
+ */
+final class RenderCache {
+  /** The length up to which a render is held strongly. */
+  static final int STRONG_LIMIT = 4096;
+
+  /** The render, a soft reference to it, or null if there's none. */
+  private volatile Object rendered;
+
+  /** Returns the held render, or renders it now with {@code renderer} and holds it. */
+  @SuppressWarnings("unchecked")
+  String get(Renderer renderer) {
+    Object cached = rendered;
+    String result = cached instanceof SoftReference
+        ? ((SoftReference<String>) cached).get()
+        : (String) cached;
+    if (result == null) {
+      StringBuilder out = new StringBuilder();
+      try {
+        renderer.render(out);
+      } catch (IOException e) {
+        throw new AssertionError();
+      }
+      result = out.toString();
+      rendered = result.length() <= STRONG_LIMIT ? result : new SoftReference<>(result);
+    }
+    return result;
+  }
+
+  /** Writes a spec's code. */
+  interface Renderer {
+    void render(StringBuilder out) throws IOException;
+  }
+}
@@ -0,0 +1,39 @@
+package com.squareup.javapoet;
+
+import java.io.IOException;
+
+import static com.squareup.javapoet.Util.checkNotNull;
+
+/** A {@link CodeSink} that appends to two sinks. */
+final class TeeCodeSink implements CodeSink {
+  private final CodeSink first;
+  private final CodeSink second;
+
+  TeeCodeSink(CodeSink first, CodeSink second) {
+    this.first = checkNotNull(first, "first == null");
+    this.second = checkNotNull(second, "second == null");
+  }
+
+  @Override public void append(char c) throws IOException {
+    first.append(c);
+    second.append(c);
+  }
+
+  @Override public void append(CharSequence s, int start, int end) throws IOException {
+    first.append(s, start, end);
+    second.append(s, start, end);
+  }
+
+  @Override public void flush() throws IOException {
+    first.flush();
+    second.flush();
+  }
+
+  @Override public void close() throws IOException {
+    try {
+      first.close();
+    } finally {
+      second.close();
+    }
+  }
+}
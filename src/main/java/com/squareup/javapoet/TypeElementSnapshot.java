@@ -0,0 +1,172 @@
+package com.squareup.javapoet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import static com.squareup.javapoet.Util.checkNotNull;
+import static com.squareup.javapoet.Util.checkState;
+
+/**
+ * An immutable copy of what code generation usually reads from a type element: its name, type
+ * variables, supertypes, annotations, constructors and methods. Everything is converted in one
+ * walk by {@link #of(TypeElement)}, which must run where the elements may be used, like the
+ * processor's thread. The snapshot holds none of the compiler's objects, so it may be shared with
+ * other threads that build and emit specs from it, or kept across rounds.
+ */
+public final class TypeElementSnapshot {
+  public final ClassName className;
+  public final Set<Modifier> modifiers;
+  public final List<TypeVariableName> typeVariables;
+  /** The superclass, or null if the type has none, like interfaces and {@code Object}. */
+  public final TypeName superclass;
+  public final List<TypeName> interfaces;
+  public final List<AnnotationSpec> annotations;
+  public final List<Executable> constructors;
+  public final List<Executable> methods;
+
+  private TypeElementSnapshot(TypeElement element) {
+    this.className = ClassName.get(element);
+    this.modifiers = Util.immutableSet(element.getModifiers());
+
+    List<TypeVariableName> typeVariables = new ArrayList<>();
+    for (TypeParameterElement typeParameter : element.getTypeParameters()) {
+      typeVariables.add(TypeVariableName.get(typeParameter));
+    }
+    this.typeVariables = Util.immutableList(typeVariables);
+
+    TypeMirror superclass = element.getSuperclass();
+    this.superclass = superclass.getKind() == TypeKind.NONE ? null : TypeName.get(superclass);
+
+    List<TypeName> interfaces = new ArrayList<>();
+    for (TypeMirror type : element.getInterfaces()) {
+      interfaces.add(TypeName.get(type));
+    }
+    this.interfaces = Util.immutableList(interfaces);
+    this.annotations = annotationsOf(element);
+
+    boolean finalClass = modifiers.contains(Modifier.FINAL);
+    List<Executable> constructors = new ArrayList<>();
+    List<Executable> methods = new ArrayList<>();
+    for (Element enclosed : element.getEnclosedElements()) {
+      if (enclosed.getKind() == ElementKind.CONSTRUCTOR) {
+        constructors.add(new Executable((ExecutableElement) enclosed, false));
+      } else if (enclosed.getKind() == ElementKind.METHOD) {
+        methods.add(new Executable((ExecutableElement) enclosed, !finalClass));
+      }
+    }
+    this.constructors = Util.immutableList(constructors);
+    this.methods = Util.immutableList(methods);
+  }
+
+  /** Returns a snapshot of {@code element}, converting all of it now. */
+  public static TypeElementSnapshot of(TypeElement element) {
+    checkNotNull(element, "element == null");
+    return new TypeElementSnapshot(element);
+  }
+
+  /** Returns a handle to the element, to add as the originating element of generated types. */
+  public OriginatingElement originatingElement() {
+    return OriginatingElement.ofType(className);
+  }
+
+  /** Returns the methods named {@code name}, in declaration order. */
+  public List<Executable> methodsNamed(String name) {
+    List<Executable> result = new ArrayList<>();
+    for (Executable method : methods) {
+      if (method.name.equals(name)) result.add(method);
+    }
+    return result;
+  }
+
+  @Override public String toString() {
+    return className.toString();
+  }
+
+  private static List<AnnotationSpec> annotationsOf(Element element) {
+    List<AnnotationSpec> result = new ArrayList<>();
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      result.add(AnnotationSpec.get(annotation));
+    }
+    return Util.immutableList(result);
+  }
+
+  /** An immutable copy of a constructor or method. */
+  public static final class Executable {
+    /** The method's name, or {@code <init>} for constructors. */
+    public final String name;
+    public final Set<Modifier> modifiers;
+    public final List<TypeVariableName> typeVariables;
+    public final TypeName returnType;
+    public final List<ParameterSpec> parameters;
+    public final boolean varargs;
+    public final List<TypeName> exceptions;
+    public final List<AnnotationSpec> annotations;
+    /**
+     * The skeleton of a method overriding this one, as built by {@link
+     * MethodSpec#overriding(ExecutableElement)}, or null if this can't be overridden.
+     */
+    public final MethodSpec overriding;
+
+    Executable(ExecutableElement element, boolean inheritable) {
+      this.name = element.getSimpleName().toString();
+      this.modifiers = Util.immutableSet(element.getModifiers());
+
+      List<TypeVariableName> typeVariables = new ArrayList<>();
+      for (TypeParameterElement typeParameter : element.getTypeParameters()) {
+        typeVariables.add(TypeVariableName.get(typeParameter));
+      }
+      this.typeVariables = Util.immutableList(typeVariables);
+      this.returnType = TypeName.get(element.getReturnType());
+
+      List<ParameterSpec> parameters = new ArrayList<>();
+      for (VariableElement parameter : element.getParameters()) {
+        parameters.add(ParameterSpec.get(parameter));
+      }
+      this.parameters = Util.immutableList(parameters);
+      this.varargs = element.isVarArgs();
+
+      List<TypeName> exceptions = new ArrayList<>();
+      for (TypeMirror thrownType : element.getThrownTypes()) {
+        exceptions.add(TypeName.get(thrownType));
+      }
+      this.exceptions = Util.immutableList(exceptions);
+      this.annotations = annotationsOf(element);
+
+      boolean overridable = inheritable
+          && !modifiers.contains(Modifier.PRIVATE)
+          && !modifiers.contains(Modifier.FINAL)
+          && !modifiers.contains(Modifier.STATIC);
+      this.overriding = overridable ? MethodSpec.overriding(element).build() : null;
+    }
+
+    /** Returns true if this is a constructor. */
+    public boolean isConstructor() {
+      return name.equals("<init>");
+    }
+
+    /** Returns a builder for a method overriding this one, or throws if it can't be overridden. */
+    public MethodSpec.Builder overridingBuilder() {
+      checkState(overriding != null, "cannot override %s", this);
+      return overriding.toBuilder();
+    }
+
+    @Override public String toString() {
+      List<String> types = new ArrayList<>();
+      for (ParameterSpec parameter : parameters) {
+        types.add(parameter.type.toString());
+      }
+      return name + "(" + String.join(", ", types) + ")";
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.squareup.javapoet;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+
+import static com.squareup.javapoet.Util.checkState;
+
+/**
+ * Caches the type names of type mirrors and elements for a round of annotation processing. Open it
+ * when the round starts and close it when it ends:
+ *
+ * <pre>{@code
+ * try (TypeMirrorCache cache = TypeMirrorCache.open()) {
+ *   // Generate code for this round's elements.
+ * }
+ * }</pre>
+ *
+ * <p>While it's open, {@link TypeName#get(TypeMirror)}, {@link ClassName#get(TypeElement)}, {@link
+ * TypeVariableName#get(TypeParameterElement)} and the {@code $T} arguments of code blocks convert
+ * each mirror or element once on the thread that opened it. Type variables are resolved once with
+ * their bounds. Closing the cache drops the mirrors and elements it holds, so none of the
+ * compiler's objects outlive the round. It must be closed on the thread that opened it.
+ */
+public final class TypeMirrorCache implements AutoCloseable {
+  private static final ThreadLocal<TypeMirrorCache> CURRENT = new ThreadLocal<>();
+
+  private final Map<TypeMirror, TypeName> typeNames = new HashMap<>();
+  private final Map<TypeElement, ClassName> classNames = new HashMap<>();
+  private final Map<TypeParameterElement, TypeVariableName> typeVariables = new LinkedHashMap<>();
+  private volatile boolean closed;
+
+  private TypeMirrorCache() {
+  }
+
+  /** Opens a cache on this thread, which must not have one open already. */
+  public static TypeMirrorCache open() {
+    checkState(CURRENT.get() == null, "a type mirror cache is already open on this thread");
+    TypeMirrorCache cache = new TypeMirrorCache();
+    CURRENT.set(cache);
+    return cache;
+  }
+
+  /** Returns the cache open on this thread, or null if there's none. */
+  static TypeMirrorCache current() {
+    return CURRENT.get();
+  }
+
+  TypeName typeName(TypeMirror mirror) {
+    TypeName result = typeNames.get(mirror);
+    if (result == null) {
+      result = TypeName.get(mirror, typeVariables);
+      typeNames.put(mirror, result);
+    }
+    return result;
+  }
+
+  ClassName className(TypeElement element) {
+    return classNames.get(element);
+  }
+
+  void putClassName(TypeElement element, ClassName className) {
+    classNames.put(element, className);
+  }
+
+  TypeVariableName typeVariable(TypeParameterElement element) {
+    return TypeVariableName.get((TypeVariable) element.asType(), typeVariables);
+  }
+
+  /**
+   * Closes this cache, dropping everything it holds. Closing it again does nothing.
+   *
+   * @throws IllegalStateException if this isn't the thread that opened the cache.
+   */
+  @Override public void close() {
+    if (closed) return;
+    checkState(CURRENT.get() == this,
+        "a type mirror cache must be closed on the thread that opened it");
+    closed = true;
+    CURRENT.remove();
+    typeNames.clear();
+    classNames.clear();
+    typeVariables.clear();
+  }
+}
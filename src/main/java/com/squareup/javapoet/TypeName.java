@@ -18,6 +18,7 @@ package com.squareup.javapoet;
 import com.squareup.javapoet.codewriter.CodeWriter;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
@@ -25,6 +26,7 @@ import java.lang.reflect.TypeVariable;
 import java.lang.reflect.WildcardType;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -68,6 +70,31 @@ import javax.lang.model.util.SimpleTypeVisitor8;
  * ParameterizedTypeName}, {@link TypeVariableName}, and {@link WildcardTypeName}.
  */
 public class TypeName implements TypeNameProvider {
+  /**
+   * The type names of classes, see {@link #get(Type)}. Each class holds its own, so the cache
+   * doesn't keep classes or their class loaders from being unloaded.
+   */
+  private static final ClassValue<TypeName> CLASS_TYPE_NAMES = new ClassValue<TypeName>() {
+    @Override protected TypeName computeValue(Class<?> type) {
+      return getClassType(type);
+    }
+  };
+
+  /** The number of parameterized and generic array types whose type names are cached. */
+  static final int GENERIC_TYPE_CACHE_SIZE = 1024;
+
+  /**
+   * The type names of recently used parameterized and generic array types, see {@link #get(Type)}.
+   * The least recently used is dropped when the cache is full. The types are held weakly, so they
+   * don't keep their classes from being unloaded. Guarded by itself.
+   */
+  private static final Map<TypeKey, TypeName> GENERIC_TYPE_NAMES =
+      new LinkedHashMap<TypeKey, TypeName>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<TypeKey, TypeName> eldest) {
+          return size() > GENERIC_TYPE_CACHE_SIZE;
+        }
+      };
+
   private static final String JAVA_LANG = "java.lang";
   public static final TypeName VOID = new TypeName("void");
   public static final TypeName BOOLEAN = new TypeName("boolean");
@@ -97,6 +124,29 @@ public class TypeName implements TypeNameProvider {
   /** Lazily-initialized toString of this type name. */
   private String cachedString;
 
+  /** Lazily-initialized hashCode of this type name, or 0. */
+  private int cachedHashCode;
+
+  /** The primitive types by the canonical names of their boxes, without {@code void}. */
+  private static final Map<String, TypeName> UNBOXED = new HashMap<>();
+  /** The boxes of the primitive types and {@code void}, by their keywords. */
+  private static final Map<String, ClassName> BOXED = new HashMap<>();
+
+  static {
+    BOXED.put(VOID.keyword, BOXED_VOID);
+    BOXED.put(BOOLEAN.keyword, BOXED_BOOLEAN);
+    BOXED.put(BYTE.keyword, BOXED_BYTE);
+    BOXED.put(SHORT.keyword, BOXED_SHORT);
+    BOXED.put(INT.keyword, BOXED_INT);
+    BOXED.put(LONG.keyword, BOXED_LONG);
+    BOXED.put(CHAR.keyword, BOXED_CHAR);
+    BOXED.put(FLOAT.keyword, BOXED_FLOAT);
+    BOXED.put(DOUBLE.keyword, BOXED_DOUBLE);
+    for (TypeName primitive : Arrays.asList(BOOLEAN, BYTE, SHORT, INT, LONG, CHAR, FLOAT, DOUBLE)) {
+      UNBOXED.put(BOXED.get(primitive.keyword).canonicalName, primitive);
+    }
+  }
+
   protected TypeName(String keyword) {
     this(keyword, new ArrayList<>());
   }
@@ -139,6 +189,16 @@ public class TypeName implements TypeNameProvider {
     return !annotations.isEmpty();
   }
 
+  /**
+   * Returns a canonical instance of this type name. Equal type names that match in every part,
+   * including the package of a class name, are interned to the same instance. Interned instances
+   * are held weakly, so they may be collected when no longer used. Factories like {@link
+   * ClassName#get} don't intern what they return: call this on the type names that are kept.
+   */
+  public TypeName intern() {
+    return TypeNamePool.INSTANCE.intern(this);
+  }
+
   /**
    * Returns true if this is a primitive type like {@code int}. Returns false for all other types
    * types including boxed primitives and {@code void}.
@@ -154,15 +214,7 @@ public class TypeName implements TypeNameProvider {
    */
   @Override
   public boolean isBoxedPrimitive() {
-    TypeName thisWithoutAnnotations = withoutAnnotations();
-    return thisWithoutAnnotations.equals(BOXED_BOOLEAN)
-        || thisWithoutAnnotations.equals(BOXED_BYTE)
-        || thisWithoutAnnotations.equals(BOXED_SHORT)
-        || thisWithoutAnnotations.equals(BOXED_INT)
-        || thisWithoutAnnotations.equals(BOXED_LONG)
-        || thisWithoutAnnotations.equals(BOXED_CHAR)
-        || thisWithoutAnnotations.equals(BOXED_FLOAT)
-        || thisWithoutAnnotations.equals(BOXED_DOUBLE);
+    return this instanceof ClassName && UNBOXED.containsKey(((ClassName) this).canonicalName);
   }
 
   /**
@@ -172,17 +224,8 @@ public class TypeName implements TypeNameProvider {
   @Override
   public TypeName box() {
     if (keyword == null) return this; // Doesn't need boxing.
-    TypeName boxed = null;
-    if (keyword.equals(VOID.keyword)) boxed = BOXED_VOID;
-    else if (keyword.equals(BOOLEAN.keyword)) boxed = BOXED_BOOLEAN;
-    else if (keyword.equals(BYTE.keyword)) boxed = BOXED_BYTE;
-    else if (keyword.equals(SHORT.keyword)) boxed = BOXED_SHORT;
-    else if (keyword.equals(INT.keyword)) boxed = BOXED_INT;
-    else if (keyword.equals(LONG.keyword)) boxed = BOXED_LONG;
-    else if (keyword.equals(CHAR.keyword)) boxed = BOXED_CHAR;
-    else if (keyword.equals(FLOAT.keyword)) boxed = BOXED_FLOAT;
-    else if (keyword.equals(DOUBLE.keyword)) boxed = BOXED_DOUBLE;
-    else throw new AssertionError(keyword);
+    TypeName boxed = BOXED.get(keyword);
+    if (boxed == null) throw new AssertionError(keyword);
     return annotations.isEmpty() ? boxed : boxed.annotated(annotations);
   }
 
@@ -195,30 +238,49 @@ public class TypeName implements TypeNameProvider {
   @Override
   public TypeName unbox() {
     if (keyword != null) return this; // Already unboxed.
-    TypeName thisWithoutAnnotations = withoutAnnotations();
     TypeName unboxed = null;
-    if (thisWithoutAnnotations.equals(BOXED_VOID)) unboxed = VOID;
-    else if (thisWithoutAnnotations.equals(BOXED_BOOLEAN)) unboxed = BOOLEAN;
-    else if (thisWithoutAnnotations.equals(BOXED_BYTE)) unboxed = BYTE;
-    else if (thisWithoutAnnotations.equals(BOXED_SHORT)) unboxed = SHORT;
-    else if (thisWithoutAnnotations.equals(BOXED_INT)) unboxed = INT;
-    else if (thisWithoutAnnotations.equals(BOXED_LONG)) unboxed = LONG;
-    else if (thisWithoutAnnotations.equals(BOXED_CHAR)) unboxed = CHAR;
-    else if (thisWithoutAnnotations.equals(BOXED_FLOAT)) unboxed = FLOAT;
-    else if (thisWithoutAnnotations.equals(BOXED_DOUBLE)) unboxed = DOUBLE;
-    else throw new UnsupportedOperationException("cannot unbox " + this);
+    if (this instanceof ClassName) {
+      String canonicalName = ((ClassName) this).canonicalName;
+      unboxed = canonicalName.equals(BOXED_VOID.canonicalName) ? VOID : UNBOXED.get(canonicalName);
+    }
+    if (unboxed == null) throw new UnsupportedOperationException("cannot unbox " + this);
     return annotations.isEmpty() ? unboxed : unboxed.annotated(annotations);
   }
 
+  /**
+   * Returns true if {@code o} is the same kind of type, and they are emitted the same. Types are
+   * compared by their parts, not by emitting them.
+   */
   @Override public final boolean equals(Object o) {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    TypeName that = (TypeName) o;
+    return hashCode() == that.hashCode() && equalTo(that);
   }
 
   @Override public final int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      result = computeHashCode();
+      cachedHashCode = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if this is emitted the same as {@code that}, which is of the same class. Types
+   * that aren't defined by JavaPoet are compared by emitting them.
+   */
+  boolean equalTo(TypeName that) {
+    if (getClass() != TypeName.class) return toString().equals(that.toString());
+    return keyword.equals(that.keyword) && annotations.equals(that.annotations);
+  }
+
+  /** Returns a hash code that agrees with {@link #equalTo}. */
+  int computeHashCode() {
+    if (getClass() != TypeName.class) return toString().hashCode();
+    return keyword.hashCode() * 31 + annotations.hashCode();
   }
 
   @Override public final String toString() {
@@ -258,7 +320,8 @@ public class TypeName implements TypeNameProvider {
 
   /** Returns a type name equivalent to {@code mirror}. */
   public static TypeName get(TypeMirror mirror) {
-    return get(mirror, new LinkedHashMap<>());
+    TypeMirrorCache cache = TypeMirrorCache.current();
+    return cache != null ? cache.typeName(mirror) : get(mirror, new LinkedHashMap<>());
   }
 
   static TypeName get(TypeMirror mirror,
@@ -338,12 +401,29 @@ public class TypeName implements TypeNameProvider {
 
   /** Returns a type name equivalent to {@code type}. */
   public static TypeName get(Type type) {
-    return get(type, new LinkedHashMap<>());
+    if (type instanceof Class<?>) {
+      return CLASS_TYPE_NAMES.get((Class<?>) type);
+    } else if (!(type instanceof ParameterizedType) && !(type instanceof GenericArrayType)) {
+      return get(type, new LinkedHashMap<>());
+    }
+
+    TypeKey key = new TypeKey(type);
+    TypeName result;
+    synchronized (GENERIC_TYPE_NAMES) {
+      result = GENERIC_TYPE_NAMES.get(key);
+    }
+    if (result == null) {
+      result = get(type, new LinkedHashMap<>());
+      synchronized (GENERIC_TYPE_NAMES) {
+        GENERIC_TYPE_NAMES.put(key, result);
+      }
+    }
+    return result;
   }
 
   static TypeName get(Type type, Map<Type, TypeVariableName> map) {
     if (type instanceof Class<?>) {
-      return getClassType((Class<?>) type, map);
+      return CLASS_TYPE_NAMES.get((Class<?>) type);
     } else if (type instanceof ParameterizedType) {
       return ParameterizedTypeName.get((ParameterizedType) type, map);
     } else if (type instanceof WildcardType) {
@@ -357,7 +437,7 @@ public class TypeName implements TypeNameProvider {
     }
   }
 
-  private static TypeName getClassType(Class<?> classType, Map<Type, TypeVariableName> map) {
+  private static TypeName getClassType(Class<?> classType) {
     if (classType == void.class) return VOID;
     if (classType == boolean.class) return BOOLEAN;
     if (classType == byte.class) return BYTE;
@@ -367,10 +447,34 @@ public class TypeName implements TypeNameProvider {
     if (classType == char.class) return CHAR;
     if (classType == float.class) return FLOAT;
     if (classType == double.class) return DOUBLE;
-    if (classType.isArray()) return ArrayTypeName.of(get(classType.getComponentType(), map));
+    if (classType.isArray()) return ArrayTypeName.of(get(classType.getComponentType()));
     return ClassName.get(classType);
   }
 
+  /**
+   * A weakly held type. Keys are equal if their types are equal. Once collected, a key is only
+   * equal to itself, and stays in the cache until it's the least recently used.
+   */
+  private static final class TypeKey extends WeakReference<Type> {
+    private final int hashCode;
+
+    TypeKey(Type type) {
+      super(type);
+      this.hashCode = type.hashCode();
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof TypeKey) || hashCode != o.hashCode()) return false;
+      Type type = get();
+      return type != null && type.equals(((TypeKey) o).get());
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+  }
+
   /** Converts an array of types to a list of type names. */
   static List<TypeName> list(Type[] types) {
     return list(types, new LinkedHashMap<>());
@@ -0,0 +1,105 @@
+package com.squareup.javapoet;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns type names, so that equal type names share one instance. The pool holds its instances
+ * weakly: one that's no longer used elsewhere is dropped from the pool when it's collected.
+ *
+ * <p>Equal type names may still differ in what they don't emit, like the package of a class name
+ * or the bounds of a type variable. An instance is only shared with type names that match it in
+ * every part. Type variables aren't shared, as their bounds may still be filled in.
+ */
+final class TypeNamePool {
+  static final TypeNamePool INSTANCE = new TypeNamePool();
+
+  private final ConcurrentHashMap<Entry, Entry> entries = new ConcurrentHashMap<>();
+  private final ReferenceQueue<TypeName> collected = new ReferenceQueue<>();
+
+  /** Returns the pooled instance that matches {@code typeName}, pooling it if there's none. */
+  @SuppressWarnings("unchecked")
+  <T extends TypeName> T intern(T typeName) {
+    for (Object entry; (entry = collected.poll()) != null; ) {
+      entries.remove(entry);
+    }
+
+    Entry entry = new Entry(typeName, collected);
+    while (true) {
+      Entry pooled = entries.putIfAbsent(entry, entry);
+      if (pooled == null) return typeName;
+      TypeName result = pooled.get();
+      if (result != null) return (T) result;
+      entries.remove(pooled, pooled); // Collected, but not polled yet.
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /** Returns true if {@code a} and {@code b} are equal in every part, not just in what's emitted. */
+  @SuppressWarnings("ReferenceEquality") // Only a shortcut: equal type names are compared below.
+  static boolean identical(TypeName a, TypeName b) {
+    if (a == b) return true;
+    if (a == null || b == null || !a.equals(b)) return false;
+    if (!a.annotations.equals(b.annotations)) return false;
+
+    if (a instanceof ClassName) {
+      ClassName x = (ClassName) a;
+      ClassName y = (ClassName) b;
+      return x.packageName.equals(y.packageName)
+          && x.simpleName.equals(y.simpleName)
+          && identical(x.enclosingClassName, y.enclosingClassName);
+    } else if (a instanceof ParameterizedTypeName) {
+      ParameterizedTypeName x = (ParameterizedTypeName) a;
+      ParameterizedTypeName y = (ParameterizedTypeName) b;
+      return identical(x.enclosingType, y.enclosingType)
+          && identical(x.rawType, y.rawType)
+          && identical(x.typeArguments, y.typeArguments);
+    } else if (a instanceof ArrayTypeName) {
+      return identical(((ArrayTypeName) a).componentType, ((ArrayTypeName) b).componentType);
+    } else if (a instanceof WildcardTypeName) {
+      WildcardTypeName x = (WildcardTypeName) a;
+      WildcardTypeName y = (WildcardTypeName) b;
+      return identical(x.upperBounds, y.upperBounds) && identical(x.lowerBounds, y.lowerBounds);
+    } else if (a instanceof TypeVariableName) {
+      return false;
+    }
+    return a.getClass() == TypeName.class;
+  }
+
+  private static boolean identical(List<TypeName> a, List<TypeName> b) {
+    if (a.size() != b.size()) return false;
+    for (int i = 0; i < a.size(); i++) {
+      if (!identical(a.get(i), b.get(i))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * A weakly held type name. Entries are equal if their type names are identical. Once collected,
+   * an entry is only equal to itself.
+   */
+  private static final class Entry extends WeakReference<TypeName> {
+    private final int hashCode;
+
+    Entry(TypeName typeName, ReferenceQueue<TypeName> queue) {
+      super(typeName, queue);
+      this.hashCode = typeName.hashCode();
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Entry) || hashCode != o.hashCode()) return false;
+      TypeName typeName = get();
+      return typeName != null && identical(typeName, ((Entry) o).get());
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+  }
+}
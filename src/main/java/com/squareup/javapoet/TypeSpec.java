@@ -20,6 +20,7 @@ import com.squareup.javapoet.codewriter.CodeWriter;
 import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -31,7 +32,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.Modifier;
@@ -64,8 +69,27 @@ public final class TypeSpec {
   public final List<MethodSpec> methodSpecs;
   public final List<TypeSpec> typeSpecs;
   public final Set<String> nestedTypesSimpleNames;
+  /** The originating elements of this type and its nested types. */
   public final List<Element> originatingElements;
+  /** The originating element handles of this type and its nested types. */
+  public final List<OriginatingElement> originatingElementHandles;
   public final Set<String> alwaysQualifiedNames;
+  /**
+   * The fewest fields, methods and nested types, counting those of nested types, for which the
+   * members of a type are rendered in parallel. Smaller types render faster one member after
+   * another than with a fork, a buffer and a join per member.
+   */
+  static final int PARALLEL_MEMBER_THRESHOLD = 32;
+
+  /** The number of fields, methods and nested types of this type and its nested types. */
+  private final int memberCount;
+  /** Lazily computed hash code of this type, or 0. */
+  private int cachedHashCode;
+  /** The originating elements added to this type's builder, without those of nested types. */
+  private final List<Element> ownOriginatingElements;
+  private final List<OriginatingElement> ownOriginatingElementHandles;
+  /** The rendered type, see {@link RenderCache}. */
+  private final RenderCache rendered = new RenderCache();
 
   private static final String CLASSNAME_NULL_FORMAT = "className == null";
   private static final String NAME_NULL_FORMAT = "name == null";
@@ -89,21 +113,25 @@ public final class TypeSpec {
     this.alwaysQualifiedNames = Util.immutableSet(builder.alwaysQualifiedNames);
 
     nestedTypesSimpleNames = new HashSet<>(builder.typeSpecs.size());
-    List<Element> originatingElementsMutable = new ArrayList<>();
-    originatingElementsMutable.addAll(builder.originatingElements);
+    int memberCount = fieldSpecs.size() + methodSpecs.size();
     for (TypeSpec typeSpec : builder.typeSpecs) {
       nestedTypesSimpleNames.add(typeSpec.name);
-      originatingElementsMutable.addAll(typeSpec.originatingElements);
+      memberCount += 1 + typeSpec.memberCount;
     }
+    this.memberCount = memberCount;
 
-    this.originatingElements = Util.immutableList(originatingElementsMutable);
+    this.ownOriginatingElements = Util.immutableList(builder.originatingElements);
+    this.ownOriginatingElementHandles = Util.immutableList(builder.originatingElementHandles);
+    this.originatingElements = new Originating<>(this, type -> type.ownOriginatingElements);
+    this.originatingElementHandles =
+        new Originating<>(this, type -> type.ownOriginatingElementHandles);
   }
 
   /**
    * Creates a dummy type spec for type-resolution only (in CodeWriter)
    * while emitting the type declaration but before entering the type body.
    */
-  private TypeSpec(TypeSpec type) {
+  TypeSpec(TypeSpec type) {
     assert type.anonymousTypeArguments == null;
     this.kind = type.kind;
     this.name = type.name;
@@ -120,11 +148,20 @@ public final class TypeSpec {
     this.initializerBlock = type.initializerBlock;
     this.methodSpecs = Collections.emptyList();
     this.typeSpecs = Collections.emptyList();
+    this.ownOriginatingElements = Collections.emptyList();
+    this.ownOriginatingElementHandles = Collections.emptyList();
     this.originatingElements = Collections.emptyList();
+    this.originatingElementHandles = Collections.emptyList();
+    this.memberCount = 0;
     this.nestedTypesSimpleNames = Collections.emptySet();
     this.alwaysQualifiedNames = Collections.emptySet();
   }
 
+  /** Returns true if this type is large enough to render its members in parallel. */
+  boolean rendersMembersInParallel() {
+    return memberCount >= PARALLEL_MEMBER_THRESHOLD;
+  }
+
   public boolean hasModifier(Modifier modifier) {
     return modifiers.contains(modifier);
   }
@@ -183,7 +220,8 @@ public final class TypeSpec {
     builder.typeSpecs.addAll(typeSpecs);
     builder.initializerBlock.add(initializerBlock);
     builder.staticBlock.add(staticBlock);
-    builder.originatingElements.addAll(originatingElements);
+    builder.originatingElements.addAll(ownOriginatingElements);
+    builder.originatingElementHandles.addAll(ownOriginatingElementHandles);
     builder.alwaysQualifiedNames.addAll(alwaysQualifiedNames);
     return builder;
   }
@@ -200,7 +238,7 @@ public final class TypeSpec {
         codeWriter.emitJavadoc(javadoc);
         codeWriter.emitAnnotations(annotations, false);
         codeWriter.emit("$L", enumName);
-        if (!anonymousTypeArguments.formatParts.isEmpty()) {
+        if (!anonymousTypeArguments.isEmpty()) {
           codeWriter.emit("(");
           codeWriter.emit(anonymousTypeArguments);
           codeWriter.emit(")");
@@ -267,6 +305,9 @@ public final class TypeSpec {
 
       codeWriter.pushType(this);
       codeWriter.indent();
+      Iterator<String> renderedMembers = enumName == null && anonymousTypeArguments == null
+          ? renderMembers(codeWriter)
+          : null;
       boolean firstMember = true;
       boolean needsSeparator = kind == Kind.ENUM
               && (!fieldSpecs.isEmpty() || !methodSpecs.isEmpty() || !typeSpecs.isEmpty());
@@ -289,7 +330,11 @@ public final class TypeSpec {
       for (FieldSpec fieldSpec : fieldSpecs) {
         if (!fieldSpec.hasModifier(Modifier.STATIC)) continue;
         if (!firstMember) codeWriter.emit("\n");
-        fieldSpec.emit(codeWriter, kind.implicitFieldModifiers);
+        if (renderedMembers != null) {
+          codeWriter.emitFragment(renderedMembers.next());
+        } else {
+          fieldSpec.emit(codeWriter, kind.implicitFieldModifiers);
+        }
         firstMember = false;
       }
 
@@ -303,7 +348,11 @@ public final class TypeSpec {
       for (FieldSpec fieldSpec : fieldSpecs) {
         if (fieldSpec.hasModifier(Modifier.STATIC)) continue;
         if (!firstMember) codeWriter.emit("\n");
-        fieldSpec.emit(codeWriter, kind.implicitFieldModifiers);
+        if (renderedMembers != null) {
+          codeWriter.emitFragment(renderedMembers.next());
+        } else {
+          fieldSpec.emit(codeWriter, kind.implicitFieldModifiers);
+        }
         firstMember = false;
       }
 
@@ -318,7 +367,11 @@ public final class TypeSpec {
       for (MethodSpec methodSpec : methodSpecs) {
         if (!methodSpec.isConstructor()) continue;
         if (!firstMember) codeWriter.emit("\n");
-        methodSpec.emit(codeWriter, name, kind.implicitMethodModifiers);
+        if (renderedMembers != null) {
+          codeWriter.emitFragment(renderedMembers.next());
+        } else {
+          methodSpec.emit(codeWriter, name, kind.implicitMethodModifiers);
+        }
         firstMember = false;
       }
 
@@ -326,14 +379,22 @@ public final class TypeSpec {
       for (MethodSpec methodSpec : methodSpecs) {
         if (methodSpec.isConstructor()) continue;
         if (!firstMember) codeWriter.emit("\n");
-        methodSpec.emit(codeWriter, name, kind.implicitMethodModifiers);
+        if (renderedMembers != null) {
+          codeWriter.emitFragment(renderedMembers.next());
+        } else {
+          methodSpec.emit(codeWriter, name, kind.implicitMethodModifiers);
+        }
         firstMember = false;
       }
 
       // Types.
       for (TypeSpec typeSpec : typeSpecs) {
         if (!firstMember) codeWriter.emit("\n");
-        typeSpec.emit(codeWriter, null, kind.implicitTypeModifiers);
+        if (renderedMembers != null) {
+          codeWriter.emitFragment(renderedMembers.next());
+        } else {
+          typeSpec.emit(codeWriter, null, kind.implicitTypeModifiers);
+        }
         firstMember = false;
       }
 
@@ -350,26 +411,146 @@ public final class TypeSpec {
     }
   }
 
+  /**
+   * Renders the fields, methods and types of this type on the member pool of {@code codeWriter},
+   * each on a fork of it, in the order {@link #emit} emits them. Returns null if they are to be
+   * emitted one after another, as when there's no pool or this type is small.
+   */
+  private Iterator<String> renderMembers(CodeWriter codeWriter) throws IOException {
+    ForkJoinPool pool = codeWriter.memberPool();
+    if (pool == null || !rendersMembersInParallel()) {
+      return null;
+    }
+
+    List<Callable<String>> members = new ArrayList<>();
+    for (FieldSpec fieldSpec : fieldSpecs) {
+      if (!fieldSpec.hasModifier(Modifier.STATIC)) continue;
+      members.add(member(codeWriter, out -> fieldSpec.emit(out, kind.implicitFieldModifiers)));
+    }
+    for (FieldSpec fieldSpec : fieldSpecs) {
+      if (fieldSpec.hasModifier(Modifier.STATIC)) continue;
+      members.add(member(codeWriter, out -> fieldSpec.emit(out, kind.implicitFieldModifiers)));
+    }
+    for (MethodSpec methodSpec : methodSpecs) {
+      if (!methodSpec.isConstructor()) continue;
+      members.add(member(codeWriter, out -> methodSpec.emit(out, name, kind.implicitMethodModifiers)));
+    }
+    for (MethodSpec methodSpec : methodSpecs) {
+      if (methodSpec.isConstructor()) continue;
+      members.add(member(codeWriter, out -> methodSpec.emit(out, name, kind.implicitMethodModifiers)));
+    }
+    for (TypeSpec typeSpec : typeSpecs) {
+      members.add(member(codeWriter, out -> typeSpec.emit(out, null, kind.implicitTypeModifiers)));
+    }
+    return Util.invokeAll(pool, members).iterator();
+  }
+
+  private static Callable<String> member(CodeWriter codeWriter, MemberEmitter emitter) {
+    StringBuilder result = new StringBuilder();
+    CodeWriter fork = codeWriter.fork(result);
+    return () -> {
+      emitter.emit(fork);
+      return result.toString();
+    };
+  }
+
+  private interface MemberEmitter {
+    void emit(CodeWriter codeWriter) throws IOException;
+  }
+
+  /**
+   * The originating elements or handles of a type and its nested types. They're collected when
+   * first read, so building a nested type doesn't copy them into each type that encloses it.
+   */
+  private static final class Originating<T> extends AbstractList<T> {
+    private final TypeSpec type;
+    private final Function<TypeSpec, List<T>> own;
+    private volatile List<T> all;
+
+    Originating(TypeSpec type, Function<TypeSpec, List<T>> own) {
+      this.type = type;
+      this.own = own;
+    }
+
+    @Override public T get(int index) {
+      return all().get(index);
+    }
+
+    @Override public int size() {
+      return all().size();
+    }
+
+    private List<T> all() {
+      List<T> result = all;
+      if (result == null) {
+        List<T> collected = new ArrayList<>();
+        collect(type, collected);
+        result = Collections.unmodifiableList(collected);
+        all = result;
+      }
+      return result;
+    }
+
+    private void collect(TypeSpec typeSpec, List<T> out) {
+      out.addAll(own.apply(typeSpec));
+      for (TypeSpec nested : typeSpec.typeSpecs) {
+        collect(nested, out);
+      }
+    }
+  }
+
+  /**
+   * Types are compared by the parts they emit. Fields and methods are compared in the order they
+   * are emitted, which groups static fields and constructors first. Originating elements and
+   * always qualified names aren't emitted by {@link #toString}, so they aren't compared.
+   */
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null) return false;
     if (getClass() != o.getClass()) return false;
-    return toString().equals(o.toString());
+    TypeSpec that = (TypeSpec) o;
+    return hashCode() == that.hashCode()
+        && kind == that.kind
+        && Objects.equals(name, that.name)
+        && Objects.equals(anonymousTypeArguments, that.anonymousTypeArguments)
+        && modifiers.equals(that.modifiers)
+        && TypeVariableName.declarationsEqual(typeVariables, that.typeVariables)
+        && Objects.equals(superclass, that.superclass)
+        && superinterfaces.equals(that.superinterfaces)
+        && annotations.equals(that.annotations)
+        && javadoc.equals(that.javadoc)
+        && enumConstants.equals(that.enumConstants)
+        && Util.sameOrder(enumConstants.keySet(), that.enumConstants.keySet())
+        && Util.sameOrder(fieldSpecs, that.fieldSpecs, f -> f.hasModifier(Modifier.STATIC))
+        && Util.sameOrder(fieldSpecs, that.fieldSpecs, f -> !f.hasModifier(Modifier.STATIC))
+        && staticBlock.equals(that.staticBlock)
+        && initializerBlock.equals(that.initializerBlock)
+        && Util.sameOrder(methodSpecs, that.methodSpecs, MethodSpec::isConstructor)
+        && Util.sameOrder(methodSpecs, that.methodSpecs, m -> !m.isConstructor())
+        && typeSpecs.equals(that.typeSpecs);
   }
 
   @Override public int hashCode() {
-    return toString().hashCode();
+    int result = cachedHashCode;
+    if (result == 0) {
+      // Fields and methods are summed, as only their order within each group matters.
+      int members = 0;
+      for (FieldSpec fieldSpec : fieldSpecs) {
+        members += fieldSpec.hashCode();
+      }
+      for (MethodSpec methodSpec : methodSpecs) {
+        members += methodSpec.hashCode();
+      }
+      result = Objects.hash(kind.name(), name, anonymousTypeArguments, javadoc, annotations,
+          Util.modifiersHashCode(modifiers), typeVariables, superclass, superinterfaces,
+          enumConstants, staticBlock, initializerBlock, typeSpecs, members);
+      cachedHashCode = result;
+    }
+    return result;
   }
 
   @Override public String toString() {
-    StringBuilder out = new StringBuilder();
-    try {
-      CodeWriter codeWriter = new CodeWriter(out);
-      emit(codeWriter, null, Collections.emptySet());
-      return out.toString();
-    } catch (IOException e) {
-      throw new AssertionError();
-    }
+    return rendered.get(out -> emit(new CodeWriter(out), null, Collections.emptySet()));
   }
 
   public enum Kind {
@@ -429,6 +610,7 @@ public final class TypeSpec {
     public final List<MethodSpec> methodSpecs = new ArrayList<>();
     public final List<TypeSpec> typeSpecs = new ArrayList<>();
     public final List<Element> originatingElements = new ArrayList<>();
+    public final List<OriginatingElement> originatingElementHandles = new ArrayList<>();
     public final Set<String> alwaysQualifiedNames = new LinkedHashSet<>();
 
     private static final String REQUIRES_MODIFIERS_FORMAT = "%s %s.%s requires modifiers %s";
@@ -639,6 +821,16 @@ public final class TypeSpec {
       return this;
     }
 
+    /**
+     * Adds a handle to an originating element. Unlike the element, the handle doesn't keep the
+     * compiler's symbols alive, which lets the built type outlive the round that created it.
+     */
+    public Builder addOriginatingElement(OriginatingElement originatingElement) {
+      checkArgument(originatingElement != null, "originatingElement == null");
+      originatingElementHandles.add(originatingElement);
+      return this;
+    }
+
     public Builder alwaysQualify(String... simpleNames) {
       checkArgument(simpleNames != null, "simpleNames == null");
       for (String simpleName : simpleNames) {
@@ -87,6 +87,25 @@ public final class TypeVariableName extends TypeName {
     return out.emitAndIndent(name);
   }
 
+  /** Type variables are emitted without their bounds, so those aren't compared. */
+  @Override boolean equalTo(TypeName o) {
+    TypeVariableName that = (TypeVariableName) o;
+    return name.equals(that.name) && annotations.equals(that.annotations);
+  }
+
+  @Override int computeHashCode() {
+    return name.hashCode() * 31 + annotations.hashCode();
+  }
+
+  /** Returns true if {@code a} and {@code b} declare equal type variables with equal bounds. */
+  static boolean declarationsEqual(List<TypeVariableName> a, List<TypeVariableName> b) {
+    if (!a.equals(b)) return false;
+    for (int i = 0; i < a.size(); i++) {
+      if (!a.get(i).bounds.equals(b.get(i).bounds)) return false;
+    }
+    return true;
+  }
+
   /** Returns type variable named {@code name} without bounds. */
   public static TypeVariableName get(String name) {
     return TypeVariableName.of(name, Collections.emptyList());
@@ -136,6 +155,9 @@ public final class TypeVariableName extends TypeName {
 
   /** Returns type variable equivalent to {@code element}. */
   public static TypeVariableName get(TypeParameterElement element) {
+    TypeMirrorCache cache = TypeMirrorCache.current();
+    if (cache != null) return cache.typeVariable(element);
+
     String name = element.getSimpleName().toString();
     List<? extends TypeMirror> boundsMirrors = element.getBounds();
 
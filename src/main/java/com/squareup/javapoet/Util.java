@@ -15,15 +15,24 @@
  */
 package com.squareup.javapoet;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import javax.lang.model.element.Modifier;
 
 import static java.lang.Character.isISOControl;
@@ -77,6 +86,67 @@ public final class Util {
     return result;
   }
 
+  /**
+   * Runs {@code tasks} on {@code pool} and returns their results in the order of the tasks. The
+   * exception of the first task that failed is rethrown as is.
+   */
+  static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+    List<T> results = new ArrayList<>(tasks.size());
+    for (Future<T> future : pool.invokeAll(tasks)) {
+      try {
+        results.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new AssertionError(cause);
+      }
+    }
+    return results;
+  }
+
+  /** Returns true if {@code a} and {@code b} iterate equal elements in the same order. */
+  static boolean sameOrder(Iterable<?> a, Iterable<?> b) {
+    Iterator<?> i = a.iterator();
+    Iterator<?> j = b.iterator();
+    while (i.hasNext() && j.hasNext()) {
+      if (!Objects.equals(i.next(), j.next())) return false;
+    }
+    return !i.hasNext() && !j.hasNext();
+  }
+
+  /**
+   * Returns true if the elements of {@code a} and {@code b} that match {@code filter} are equal and
+   * in the same order.
+   */
+  static <T> boolean sameOrder(List<T> a, List<T> b, Predicate<? super T> filter) {
+    int i = 0;
+    int j = 0;
+    while (true) {
+      while (i < a.size() && !filter.test(a.get(i))) i++;
+      while (j < b.size() && !filter.test(b.get(j))) j++;
+      if (i == a.size() || j == b.size()) return i == a.size() && j == b.size();
+      if (!a.get(i++).equals(b.get(j++))) return false;
+    }
+  }
+
+  /**
+   * Returns a hash code of {@code modifiers} that doesn't change from one run to the next, unlike
+   * that of the set, which hashes the enum constants by identity. Modifiers are hashed by name, as
+   * their ordinals differ between JDK versions.
+   */
+  static int modifiersHashCode(Set<Modifier> modifiers) {
+    int result = 0;
+    for (Modifier modifier : modifiers) {
+      result += modifier.name().hashCode();
+    }
+    return result;
+  }
+
   static void requireExactlyOneOf(Set<Modifier> modifiers, Modifier... mutuallyExclusive) {
     int count = 0;
     for (Modifier modifier : mutuallyExclusive) {
@@ -86,7 +156,25 @@ public final class Util {
         modifiers, Arrays.toString(mutuallyExclusive));
   }
 
-  static String characterLiteralWithoutSingleQuotes(char c) {
+  /**
+   * The escapes of characters below U+00A0, which include all ISO control characters, in character
+   * literals. Null for characters that aren't escaped.
+   */
+  private static final String[] CHARACTER_ESCAPES = new String[0xa0];
+  /** Like {@link #CHARACTER_ESCAPES}, but for string literals. */
+  private static final String[] STRING_ESCAPES = new String[0xa0];
+
+  static {
+    for (char c = 0; c < CHARACTER_ESCAPES.length; c++) {
+      CHARACTER_ESCAPES[c] = escape(c);
+      STRING_ESCAPES[c] = escape(c);
+    }
+    // Single quotes don't need to be escaped in string literals, but double quotes do.
+    STRING_ESCAPES['\''] = null;
+    STRING_ESCAPES['"'] = "\\\"";
+  }
+
+  private static String escape(char c) {
     // see https://docs.oracle.com/javase/specs/jls/se7/html/jls-3.html#jls-3.10.6
     switch (c) {
       case '\b': return "\\b"; /* \u0008: backspace (BS) */
@@ -94,38 +182,57 @@ public final class Util {
       case '\n': return "\\n"; /* \u000a: linefeed (LF) */
       case '\f': return "\\f"; /* \u000c: form feed (FF) */
       case '\r': return "\\r"; /* \u000d: carriage return (CR) */
-      case '\"': return "\"";  /* \u0022: double quote (") */
       case '\'': return "\\'"; /* \u0027: single quote (') */
       case '\\': return "\\\\";  /* \u005c: backslash (\) */
       default:
-        return isISOControl(c) ? String.format("\\u%04x", (int) c) : Character.toString(c);
+        return isISOControl(c) ? String.format("\\u%04x", (int) c) : null;
     }
   }
 
+  static String characterLiteralWithoutSingleQuotes(char c) {
+    String escape = c < CHARACTER_ESCAPES.length ? CHARACTER_ESCAPES[c] : null;
+    return escape != null ? escape : Character.toString(c);
+  }
+
   /** Returns the string literal representing {@code value}, including wrapping double quotes. */
   public static String stringLiteralWithDoubleQuotes(String value, String indent) {
-    StringBuilder result = new StringBuilder(value.length() + 2);
-    result.append('"');
+    int escaped = firstEscaped(value);
+    if (escaped == value.length()) return "\"" + value + "\"";
+    StringBuilder result = new StringBuilder(value.length() + 16);
+    appendStringLiteral(result, value, escaped, indent);
+    return result.toString();
+  }
+
+  /** Appends the string literal representing {@code value}, including wrapping double quotes. */
+  static void appendStringLiteralWithDoubleQuotes(StringBuilder out, String value, String indent) {
+    appendStringLiteral(out, value, firstEscaped(value), indent);
+  }
+
+  /** Returns the index of the first character of {@code value} that's escaped, or its length. */
+  private static int firstEscaped(String value) {
     for (int i = 0; i < value.length(); i++) {
       char c = value.charAt(i);
-      // trivial case: single quote must not be escaped
-      if (c == '\'') {
-        result.append("'");
-        continue;
-      }
-      // trivial case: double quotes must be escaped
-      if (c == '\"') {
-        result.append("\\\"");
-        continue;
-      }
-      // default case: just let character literal do its work
-      result.append(characterLiteralWithoutSingleQuotes(c));
+      if (c < STRING_ESCAPES.length && STRING_ESCAPES[c] != null) return i;
+    }
+    return value.length();
+  }
+
+  /** Appends {@code value} as a string literal, copying the runs between escapes as they are. */
+  private static void appendStringLiteral(
+      StringBuilder out, String value, int escaped, String indent) {
+    out.append('"');
+    int copied = 0;
+    for (int i = escaped; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String escape = c < STRING_ESCAPES.length ? STRING_ESCAPES[c] : null;
+      if (escape == null) continue;
+      out.append(value, copied, i).append(escape);
+      copied = i + 1;
       // need to append indent after linefeed?
-      if (c == '\n' && i + 1 < value.length()) {
-        result.append("\"\n").append(indent).append(indent).append("+ \"");
+      if (c == '\n' && copied < value.length()) {
+        out.append("\"\n").append(indent).append(indent).append("+ \"");
       }
     }
-    result.append('"');
-    return result.toString();
+    out.append(value, copied, value.length()).append('"');
   }
 }
@@ -73,6 +73,21 @@ public final class WildcardTypeName extends TypeName {
         : out.emit("? extends $T", upperBounds.get(0));
   }
 
+  /** Wildcards are emitted without their annotations, so only their bounds are compared. */
+  @Override boolean equalTo(TypeName o) {
+    WildcardTypeName that = (WildcardTypeName) o;
+    if (lowerBounds.size() == 1) {
+      return that.lowerBounds.size() == 1 && lowerBounds.get(0).equals(that.lowerBounds.get(0));
+    }
+    return that.lowerBounds.size() != 1 && upperBounds.get(0).equals(that.upperBounds.get(0));
+  }
+
+  @Override int computeHashCode() {
+    return lowerBounds.size() == 1
+        ? lowerBounds.get(0).hashCode() * 31 + 1
+        : upperBounds.get(0).hashCode() * 31 + 2;
+  }
+
   /**
    * Returns a type that represents an unknown type that extends {@code bound}. For example, if
    * {@code bound} is {@code CharSequence.class}, this returns {@code ? extends CharSequence}. If
@@ -0,0 +1,61 @@
+package com.squareup.javapoet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import static com.squareup.javapoet.Util.checkNotNull;
+
+/** A {@link CodeSink} that collects characters in a buffer, and writes it to a {@link Writer}. */
+final class WriterCodeSink implements CodeSink {
+  private final Writer out;
+  private final char[] buffer = new char[8192];
+  private int size;
+
+  WriterCodeSink(Writer out) {
+    this.out = checkNotNull(out, "out == null");
+  }
+
+  @Override public void append(char c) throws IOException {
+    if (size == buffer.length) writeBuffer();
+    buffer[size++] = c;
+  }
+
+  @Override public void append(CharSequence s, int start, int end) throws IOException {
+    int length = end - start;
+    if (length > buffer.length - size) {
+      writeBuffer();
+      if (length > buffer.length) {
+        // Too long to buffer. Write it as is.
+        out.append(s, start, end);
+        return;
+      }
+    }
+    if (s instanceof String) {
+      ((String) s).getChars(start, end, buffer, size);
+    } else {
+      for (int i = start; i < end; i++) {
+        buffer[size + i - start] = s.charAt(i);
+      }
+    }
+    size += length;
+  }
+
+  private void writeBuffer() throws IOException {
+    if (size == 0) return;
+    out.write(buffer, 0, size);
+    size = 0;
+  }
+
+  @Override public void flush() throws IOException {
+    writeBuffer();
+    out.flush();
+  }
+
+  @Override public void close() throws IOException {
+    try {
+      writeBuffer();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package com.squareup.javapoet.codewriter;
 
 import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeSink;
 import com.squareup.javapoet.LineWrapper;
 import com.squareup.javapoet.TypeSpec;
 import com.squareup.javapoet.Multiset;
@@ -32,11 +33,11 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Collections;
-import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Objects;
-import java.util.ListIterator;
 import java.util.Locale;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 import javax.lang.model.element.Modifier;
 
 import static com.squareup.javapoet.Util.checkNotNull;
@@ -47,7 +48,19 @@ import static java.lang.String.join;
 
 public final class CodeWriter {
   private static final String NO_PACKAGE = new String();
-  private static final Pattern LINE_BREAKING_PATTERN = Pattern.compile("\\R");
+  private static final Modifier[] MODIFIERS = Modifier.values();
+  /** The keyword of each modifier followed by a space, by ordinal. */
+  private static final String[] MODIFIER_KEYWORDS = new String[MODIFIERS.length];
+
+  static {
+    for (Modifier modifier : MODIFIERS) {
+      MODIFIER_KEYWORDS[modifier.ordinal()] = modifier.name().toLowerCase(Locale.US) + " ";
+    }
+  }
+
+  private static final int COLUMN_LIMIT = 100;
+  private static final int SHADOWED = -1;
+  private static final int NOT_IN_SCOPE = -2;
 
   private final IndentationManager indentationManager;
   private final LineWrapper out;
@@ -55,13 +68,19 @@ public final class CodeWriter {
   private boolean javadoc = false;
   private boolean comment = false;
   private String packageName = NO_PACKAGE;
-  private final List<TypeSpec> typeSpecStack = new ArrayList<>();
+  /** What each simple name resolves to in the enclosing types, kept in step with the type stack. */
+  private final Map<String, ClassName> typeScope = new HashMap<>();
+  private final List<ScopeFrame> scopeFrames = new ArrayList<>();
+  /** The names {@link #lookupName} returned since the scope last changed, in code and Javadoc. */
+  private final Map<ClassName, String> codeNames = new IdentityHashMap<>();
+  private final Map<ClassName, String> javadocNames = new IdentityHashMap<>();
   private final Set<String> alwaysQualify;
   private final Map<String, ClassName> importedTypes;
   private final Map<String, ClassName> importableTypes = new LinkedHashMap<>();
   private final Set<String> referencedNames = new LinkedHashSet<>();
   private final Multiset<String> currentTypeVariables = new Multiset<>();
   private boolean trailingNewline;
+  private ForkJoinPool memberPool;
   public int statementLine = -1;
 
   public CodeWriter(Appendable out) {
@@ -74,13 +93,79 @@ public final class CodeWriter {
 
   public CodeWriter(Appendable out, String indent, Map<String, ClassName> importedTypes,
                     Set<String> staticImports, Set<String> alwaysQualify) {
-    this.out = new LineWrapper(out, indent, 100);
+    this(CodeSink.of(out), indent, importedTypes, staticImports, alwaysQualify);
+  }
+
+  public CodeWriter(CodeSink out, String indent, Map<String, ClassName> importedTypes,
+                    Set<String> staticImports, Set<String> alwaysQualify) {
+    this.out = new LineWrapper(out, indent, COLUMN_LIMIT);
     this.indentationManager = new IndentationManager(indent);
     this.staticImportManager = new StaticImportManager(staticImports);
     this.importedTypes = checkNotNull(importedTypes, "importedTypes == null");
     this.alwaysQualify = checkNotNull(alwaysQualify, "alwaysQualify == null");
   }
 
+  /** Creates a writer that continues {@code parent} from the start of a line. See {@link #fork}. */
+  private CodeWriter(CodeWriter parent, Appendable out) {
+    this.out = new LineWrapper(out, parent.indentationManager.getIndent(), COLUMN_LIMIT);
+    this.indentationManager = new IndentationManager(parent.indentationManager.getIndent());
+    this.indentationManager.indent(parent.indentationManager.getIndentLevel());
+    this.staticImportManager = parent.staticImportManager;
+    this.importedTypes = parent.importedTypes;
+    this.alwaysQualify = parent.alwaysQualify;
+    this.packageName = parent.packageName;
+    this.typeScope.putAll(parent.typeScope);
+    this.scopeFrames.addAll(parent.scopeFrames);
+    this.currentTypeVariables.addAll(parent.currentTypeVariables);
+    this.trailingNewline = true;
+    this.memberPool = parent.memberPool;
+    this.statementLine = parent.statementLine;
+  }
+
+  /**
+   * Returns a writer that writes to {@code out} what this would write from the start of a line, at
+   * the current indentation and in the current scope. What it writes can be emitted with {@link
+   * #emitFragment}. The fork records the types it references on its own; see {@link
+   * #addReferencesFrom}.
+   */
+  public CodeWriter fork(Appendable out) {
+    return new CodeWriter(this, out);
+  }
+
+  /**
+   * Emits {@code fragment}, the output of a {@link #fork} of this writer made at the start of the
+   * current line. The fragment is written as is.
+   */
+  public CodeWriter emitFragment(String fragment) throws IOException {
+    if (fragment.isEmpty()) return this;
+    out.append(fragment);
+    trailingNewline = out.lastChar() == '\n';
+    return this;
+  }
+
+  /** Records the types referenced by {@code fork} as if they were referenced by this writer. */
+  public void addReferencesFrom(CodeWriter fork) {
+    for (ClassName className : fork.importableTypes.values()) {
+      importableTypes.putIfAbsent(className.simpleName(), className);
+    }
+    referencedNames.addAll(fork.referencedNames);
+  }
+
+  /**
+   * Renders the members of the types this emits on {@code pool}, each into its own buffer, and
+   * emits the buffers in declaration order. With null, the default, they're emitted one after
+   * another. The output is the same either way.
+   */
+  public CodeWriter renderMembersOn(ForkJoinPool pool) {
+    this.memberPool = pool;
+    return this;
+  }
+
+  /** Returns the pool to render members on, or null to render them one after another. */
+  public ForkJoinPool memberPool() {
+    return memberPool;
+  }
+
   public Map<String, ClassName> importedTypes() {
     return importedTypes;
   }
@@ -108,25 +193,45 @@ public final class CodeWriter {
   public CodeWriter pushPackage(String packageName) {
     checkState(this.packageName.equals(NO_PACKAGE), "package already set: %s", this.packageName);
     this.packageName = checkNotNull(packageName, "packageName == null");
+    scopeChanged();
     return this;
   }
 
   public CodeWriter popPackage() {
     checkState(this.packageName != NO_PACKAGE, "package not set");
     this.packageName = NO_PACKAGE;
+    scopeChanged();
     return this;
   }
 
   public CodeWriter pushType(TypeSpec type) {
-    this.typeSpecStack.add(type);
+    ClassName className = scopeFrames.isEmpty()
+        ? ClassName.get(packageName, type.name)
+        : scopeFrames.get(scopeFrames.size() - 1).className.nestedClass(type.name);
+    ScopeFrame frame = new ScopeFrame(className, type.nestedTypesSimpleNames.size() + 1);
+    if (scopeFrames.isEmpty() && type.name != null) {
+      // The top-level type is in scope by its name, unless a nested type hides it.
+      frame.bind(typeScope, type.name, className);
+    }
+    for (String nestedName : type.nestedTypesSimpleNames) {
+      frame.bind(typeScope, nestedName, className.nestedClass(nestedName));
+    }
+    this.scopeFrames.add(frame);
+    scopeChanged();
     return this;
   }
 
   public CodeWriter popType() {
-    this.typeSpecStack.remove(typeSpecStack.size() - 1);
+    this.scopeFrames.remove(scopeFrames.size() - 1).unbind(typeScope);
+    scopeChanged();
     return this;
   }
 
+  private void scopeChanged() {
+    if (!codeNames.isEmpty()) codeNames.clear();
+    if (!javadocNames.isEmpty()) javadocNames.clear();
+  }
+
   public void emitComment(CodeBlock codeBlock) throws IOException {
     trailingNewline = true;
     comment = true;
@@ -160,10 +265,9 @@ public final class CodeWriter {
 
   public void emitModifiers(Set<Modifier> modifiers, Set<Modifier> implicitModifiers) throws IOException {
     if (modifiers.isEmpty()) return;
-    for (Modifier modifier : EnumSet.copyOf(modifiers)) {
-      if (implicitModifiers.contains(modifier)) continue;
-      emitAndIndent(modifier.name().toLowerCase(Locale.US));
-      emitAndIndent(" ");
+    for (Modifier modifier : MODIFIERS) {
+      if (!modifiers.contains(modifier) || implicitModifiers.contains(modifier)) continue;
+      emitAndIndent(MODIFIER_KEYWORDS[modifier.ordinal()]);
     }
   }
 
@@ -174,7 +278,7 @@ public final class CodeWriter {
   public void emitTypeVariables(List<TypeVariableName> typeVariables) throws IOException {
     if (typeVariables.isEmpty()) return;
 
-    typeVariables.forEach(typeVariable -> currentTypeVariables.add(typeVariable.name));
+    pushTypeVariables(typeVariables);
 
     emit("<");
     boolean firstTypeVariable = true;
@@ -192,8 +296,21 @@ public final class CodeWriter {
     emit(">");
   }
 
+  /** Brings {@code typeVariables} into scope, where they shadow the types of the same name. */
+  public void pushTypeVariables(List<TypeVariableName> typeVariables) {
+    if (typeVariables.isEmpty()) return;
+    for (int i = 0; i < typeVariables.size(); i++) {
+      currentTypeVariables.add(typeVariables.get(i).name);
+    }
+    scopeChanged();
+  }
+
   public void popTypeVariables(List<TypeVariableName> typeVariables) {
-    typeVariables.forEach(typeVariable -> currentTypeVariables.remove(typeVariable.name));
+    if (typeVariables.isEmpty()) return;
+    for (int i = 0; i < typeVariables.size(); i++) {
+      currentTypeVariables.remove(typeVariables.get(i).name);
+    }
+    scopeChanged();
   }
 
   public CodeWriter emit(String s) throws IOException {
@@ -210,45 +327,45 @@ public final class CodeWriter {
 
   public CodeWriter emit(CodeBlock codeBlock, boolean ensureTrailingNewline) throws IOException {
     int a = 0;
+    int t = 0;
     ClassName deferredTypeName = null;
-    ListIterator<String> partIterator = codeBlock.formatParts.listIterator();
-    while (partIterator.hasNext()) {
-      String part = partIterator.next();
-      switch (part) {
-        case "$L":
+    for (int i = 0, partCount = codeBlock.partCount(); i < partCount; i++) {
+      switch (codeBlock.partType(i)) {
+        case 'L':
           emitLiteral(codeBlock.args.get(a++));
           break;
-        case "$N":
+        case 'N':
           emitAndIndent((String) codeBlock.args.get(a++));
           break;
-        case "$S":
+        case 'S':
           emitStringLiteral((String) codeBlock.args.get(a++));
           break;
-        case "$T":
-          deferredTypeName = emitTypeName(codeBlock, a++, partIterator, deferredTypeName);
+        case 'T':
+          deferredTypeName = emitTypeName(codeBlock, a++, i, deferredTypeName);
           break;
-        case "$$":
+        case '$':
           emitAndIndent("$");
           break;
-        case "$>":
+        case '>':
           indent();
           break;
-        case "$<":
+        case '<':
           unindent();
           break;
-        case "$[":
+        case '[':
           startStatement();
           break;
-        case "$]":
+        case ']':
           endStatement();
           break;
-        case "$W":
+        case 'W':
           out.wrappingSpace(indentationManager.getIndentLevel() + 2);
           break;
-        case "$Z":
+        case 'Z':
           out.zeroWidthSpace(indentationManager.getIndentLevel() + 2);
           break;
         default:
+          String part = codeBlock.text(t++);
           boolean handled = handleDeferredTypeName(deferredTypeName, part);
           deferredTypeName = null;
           if (handled) {
@@ -268,16 +385,20 @@ public final class CodeWriter {
     emitAndIndent(string != null ? stringLiteralWithDoubleQuotes(string, indentationManager.getIndent()) : "null");
   }
 
-  private ClassName emitTypeName(CodeBlock codeBlock, int a, ListIterator<String> partIterator,
+  /**
+   * Emits the type of {@code $T} at format part {@code index}, unless it is followed by a member
+   * that may be statically imported. Then it is returned, to be settled by the text that follows.
+   */
+  private ClassName emitTypeName(CodeBlock codeBlock, int a, int index,
                                  ClassName deferredTypeName) throws IOException {
     TypeName typeName = (TypeName) codeBlock.args.get(a);
-  if (typeName instanceof ClassName && partIterator.hasNext()
-          && !codeBlock.formatParts.get(partIterator.nextIndex()).startsWith("$")) {
-        ClassName candidate = (ClassName) typeName;
-        if (staticImportManager.getStaticImportClassNames().contains(candidate.canonicalName)) {
-          checkState(deferredTypeName == null, "pending type for static import?!");
-          return candidate;
-        }
+    if (typeName instanceof ClassName && index + 1 < codeBlock.partCount()
+        && codeBlock.partType(index + 1) == CodeBlock.TEXT) {
+      ClassName candidate = (ClassName) typeName;
+      if (staticImportManager.importsMembersOf(candidate.canonicalName)) {
+        checkState(deferredTypeName == null, "pending type for static import?!");
+        return candidate;
+      }
     }
     typeName.emit(this);
     return null;
@@ -296,9 +417,17 @@ public final class CodeWriter {
     statementLine = -1;
   }
 
+  /**
+   * Returns true if {@code className} isn't emitted when followed by {@code part}, because the
+   * member that follows it is statically imported.
+   */
+  public boolean isStaticallyImported(ClassName className, String part) {
+    return part.startsWith(".") && staticImportManager.contains(className.canonicalName, part);
+  }
+
   private boolean handleDeferredTypeName(ClassName deferredTypeName, String part) throws IOException {
     if (deferredTypeName != null) {
-    if (part.startsWith(".") && staticImportManager.contains(deferredTypeName.canonicalName, part)) {
+    if (isStaticallyImported(deferredTypeName, part)) {
           emitAndIndent(part.substring(1));
           return true;
       }
@@ -324,29 +453,51 @@ public final class CodeWriter {
     }
   }
 
-  public String lookupName(ClassName className) {
-    String topLevelSimpleName = className.topLevelClassName().simpleName();
-    if (currentTypeVariables.contains(topLevelSimpleName)) {
-      return className.canonicalName;
+  /**
+   * Emits {@code className} by the name it resolves to from the current scope, followed by its
+   * annotations.
+   */
+  public CodeWriter emitClassName(ClassName className) throws IOException {
+    String qualifiedName = lookupName(className);
+    String actualName = qualifiedName;
+    boolean charsEmitted = false;
+    int dot = qualifiedName.lastIndexOf('.');
+    if (dot != -1) {
+      emitAndIndent(qualifiedName.substring(0, dot + 1));
+      actualName = qualifiedName.substring(dot + 1);
+      charsEmitted = true;
     }
 
-    boolean nameResolved = false;
-    for (ClassName c = className; c != null; c = c.enclosingClassName()) {
-      ClassName resolved = resolve(c.simpleName());
-      nameResolved = resolved != null;
+    if (className.isAnnotated()) {
+      if (charsEmitted) emit(" ");
+      emitAnnotations(className.annotations, true);
+    }
 
-      if (resolved != null && Objects.equals(resolved.canonicalName, c.canonicalName)) {
-        int suffixOffset = c.simpleNames().size() - 1;
-        return join(".", className.simpleNames().subList(suffixOffset, className.simpleNames().size()));
-      }
+    return emit(actualName);
+  }
+
+  public String lookupName(ClassName className) {
+    // The name only depends on the scope, and looking it up again records nothing new.
+    Map<ClassName, String> names = javadoc ? javadocNames : codeNames;
+    String name = names.get(className);
+    if (name == null) {
+      name = resolveName(className);
+      names.put(className, name);
     }
+    return name;
+  }
 
-    if (nameResolved) {
+  private String resolveName(ClassName className) {
+    int suffixOffset = resolvedSuffixOffset(className);
+    if (suffixOffset >= 0) {
+      return join(".", className.simpleNames().subList(suffixOffset, className.simpleNames().size()));
+    }
+    if (suffixOffset == SHADOWED) {
       return className.canonicalName;
     }
 
     if (Objects.equals(packageName, className.packageName())) {
-      referencedNames.add(topLevelSimpleName);
+      referencedNames.add(className.topLevelClassName().simpleName());
       return join(".", className.simpleNames());
     }
 
@@ -357,6 +508,44 @@ public final class CodeWriter {
     return className.canonicalName;
   }
 
+  /**
+   * Records a reference to {@code className} the way {@link #lookupName} does, without building
+   * the name it would be emitted by. References from Javadoc don't make a type importable.
+   */
+  public void referenceType(ClassName className, boolean inJavadoc) {
+    if (resolvedSuffixOffset(className) != NOT_IN_SCOPE) {
+      return;
+    }
+    if (Objects.equals(packageName, className.packageName())) {
+      referencedNames.add(className.topLevelClassName().simpleName());
+    } else if (!inJavadoc) {
+      importableType(className);
+    }
+  }
+
+  /**
+   * Returns the offset of the first simple name of {@code className} that must be emitted when it
+   * resolves from the current scope, {@link #SHADOWED} if it must be emitted by its canonical name,
+   * or {@link #NOT_IN_SCOPE} if that depends on its package and the imports.
+   */
+  private int resolvedSuffixOffset(ClassName className) {
+    if (currentTypeVariables.contains(className.topLevelClassName().simpleName())) {
+      return SHADOWED;
+    }
+
+    boolean nameResolved = false;
+    for (ClassName c = className; c != null; c = c.enclosingClassName()) {
+      ClassName resolved = resolve(c.simpleName());
+      nameResolved = resolved != null;
+
+      if (resolved != null && Objects.equals(resolved.canonicalName, c.canonicalName)) {
+        return c.simpleNames().size() - 1;
+      }
+    }
+
+    return nameResolved ? SHADOWED : NOT_IN_SCOPE;
+  }
+
   private void importableType(ClassName className) {
     if (className.packageName().isEmpty() || alwaysQualify.contains(className.simpleName)) {
       return;
@@ -370,16 +559,8 @@ public final class CodeWriter {
   }
 
   private ClassName resolve(String simpleName) {
-    for (int i = typeSpecStack.size() - 1; i >= 0; i--) {
-      TypeSpec typeSpec = typeSpecStack.get(i);
-      if (typeSpec.nestedTypesSimpleNames.contains(simpleName)) {
-        return stackClassName(i, simpleName);
-      }
-    }
-
-    if (!typeSpecStack.isEmpty() && Objects.equals(typeSpecStack.get(0).name, simpleName)) {
-      return ClassName.get(packageName, simpleName);
-    }
+    ClassName scopedType = typeScope.get(simpleName);
+    if (scopedType != null) return scopedType;
 
     ClassName importedType = importedTypes.get(simpleName);
     if (importedType != null) return importedType;
@@ -387,12 +568,36 @@ public final class CodeWriter {
     return null;
   }
 
-  private ClassName stackClassName(int stackDepth, String simpleName) {
-    ClassName className = ClassName.get(packageName, typeSpecStack.get(0).name);
-    for (int i = 1; i <= stackDepth; i++) {
-      className = className.nestedClass(typeSpecStack.get(i).name);
+  /**
+   * The names a type on the stack brings into scope, and what they resolved to before, so that
+   * popping the type restores them.
+   */
+  private static final class ScopeFrame {
+    final ClassName className;
+    final List<String> names;
+    final List<ClassName> hidden;
+
+    ScopeFrame(ClassName className, int expectedSize) {
+      this.className = className;
+      this.names = new ArrayList<>(expectedSize);
+      this.hidden = new ArrayList<>(expectedSize);
+    }
+
+    void bind(Map<String, ClassName> scope, String name, ClassName resolved) {
+      names.add(name);
+      hidden.add(scope.put(name, resolved));
+    }
+
+    void unbind(Map<String, ClassName> scope) {
+      for (int i = names.size() - 1; i >= 0; i--) {
+        ClassName previous = hidden.get(i);
+        if (previous != null) {
+          scope.put(names.get(i), previous);
+        } else {
+          scope.remove(names.get(i));
+        }
+      }
     }
-    return className.nestedClass(simpleName);
   }
 
   private void emitLineBreak() throws IOException {
@@ -410,7 +615,13 @@ public final class CodeWriter {
     }
   }
 
-  private void emitLineContent(String line) throws IOException {
+  private void emitLineContent(String s, int start, int end) throws IOException {
+    if (start == end) return;
+    startLine();
+    out.append(s, start, end);
+  }
+
+  private void startLine() throws IOException {
     if (trailingNewline) {
       emitIndentation();
       if (javadoc) {
@@ -419,25 +630,33 @@ public final class CodeWriter {
         out.append("// ");
       }
     }
-    out.append(line);
     trailingNewline = false;
   }
 
   public CodeWriter emitAndIndent(String s) throws IOException {
-    boolean first = true;
-    for (String line : LINE_BREAKING_PATTERN.split(s, -1)) {
-      if (!first) {
-        emitLineBreak();
+    int lineStart = 0;
+    for (int i = 0, length = s.length(); i < length; i++) {
+      char c = s.charAt(i);
+      if (!isLineBreak(c)) continue;
+      emitLineContent(s, lineStart, i);
+      if (c == '\r' && i + 1 < length && s.charAt(i + 1) == '\n') {
+        i++; // "\r\n" is a single line break.
       }
-      first = false;
-      if (line.isEmpty()) continue;
-      emitLineContent(line);
+      emitLineBreak();
+      lineStart = i + 1;
     }
+    emitLineContent(s, lineStart, s.length());
     return this;
   }
+
+  /** Returns true if {@code c} is a line break, as matched by {@code \R} in a regex. */
+  private static boolean isLineBreak(char c) {
+    return (c >= '\n' && c <= '\r') || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
   private void emitIndentation() throws IOException {
-    for (int j = 0; j < indentationManager.getIndentLevel(); j++) {
-      out.append(indentationManager.getIndent());
+    if (indentationManager.getIndentLevel() > 0) {
+      out.append(indentationManager.getIndentation());
     }
   }
 
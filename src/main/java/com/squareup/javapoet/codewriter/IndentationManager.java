@@ -1,8 +1,12 @@
 package com.squareup.javapoet.codewriter;
 
+import java.util.Arrays;
+
 public class IndentationManager {
     private final String indent;
     private int indentLevel = 0;
+    /** The indentation of each level, computed up to the deepest level so far. */
+    private String[] indentations = {""};
 
     IndentationManager(String indent) {
         this.indent = indent;
@@ -35,4 +39,16 @@ public class IndentationManager {
     String getIndent() {
         return indent;
     }
+
+    /** Returns the indent repeated for the current level. */
+    String getIndentation() {
+        if (indentLevel >= indentations.length) {
+            String[] grown = Arrays.copyOf(indentations, Math.max(indentLevel + 1, indentations.length * 2));
+            for (int i = indentations.length; i < grown.length; i++) {
+                grown[i] = grown[i - 1] + indent;
+            }
+            indentations = grown;
+        }
+        return indentations[indentLevel];
+    }
 }
@@ -1,46 +1,66 @@
 package com.squareup.javapoet.codewriter;
 
-import javax.lang.model.SourceVersion;
-import java.util.LinkedHashSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class StaticImportManager {
-    private final Set<String> staticImports;
-    private final Set<String> staticImportClassNames;
+    private static final String WILDCARD = "*";
+
+    /** The statically imported members of each class, indexed by the class's canonical name. */
+    private final Map<String, Members> membersByClassName;
 
     StaticImportManager(Set<String> staticImports) {
-        this.staticImports = staticImports;
-        this.staticImportClassNames = extractStaticImportClassNames(staticImports);
+        this.membersByClassName = index(staticImports);
     }
 
-    private Set<String> extractStaticImportClassNames(Set<String> staticImports) {
-        Set<String> classNames = new LinkedHashSet<>();
+    private static Map<String, Members> index(Set<String> staticImports) {
+        Map<String, Members> result = new LinkedHashMap<>();
         for (String signature : staticImports) {
-            classNames.add(signature.substring(0, signature.lastIndexOf('.')));
+            int dot = signature.lastIndexOf('.');
+            Members members = result.computeIfAbsent(signature.substring(0, dot), k -> new Members());
+            String member = signature.substring(dot + 1);
+            if (member.equals(WILDCARD)) {
+                members.wildcard = true;
+            } else {
+                members.names.add(member);
+            }
         }
-        return classNames;
+        return result;
     }
 
-    Set<String> getStaticImportClassNames() {
-        return staticImportClassNames;
+    /** Returns true if members of the class named {@code canonical} are statically imported. */
+    boolean importsMembersOf(String canonical) {
+        return membersByClassName.containsKey(canonical);
     }
 
+    /**
+     * Returns true if the member that starts {@code part}, after its leading dot, is statically
+     * imported from the class named {@code canonical}.
+     */
     boolean contains(String canonical, String part) {
-        String partWithoutLeadingDot = part.substring(1);
-        if (partWithoutLeadingDot.isEmpty()) return false;
-        char first = partWithoutLeadingDot.charAt(0);
-        if (!Character.isJavaIdentifierStart(first)) return false;
-        String explicit = canonical + "." + extractMemberName(partWithoutLeadingDot);
-        String wildcard = canonical + ".*";
-        return staticImports.contains(explicit) || staticImports.contains(wildcard);
+        Members members = membersByClassName.get(canonical);
+        if (members == null) return false;
+        if (part.length() < 2 || !Character.isJavaIdentifierStart(part.charAt(1))) return false;
+        if (members.wildcard) return true;
+        int end = memberEnd(part);
+        return members.names.contains(part.substring(1, end));
     }
 
-    private String extractMemberName(String part) {
-        for (int i = 1; i <= part.length(); i++) {
-            if (!SourceVersion.isIdentifier(part.substring(0, i))) {
-                return part.substring(0, i - 1);
-            }
+    /** Returns the end of the identifier that starts at index 1 of {@code part}. */
+    private static int memberEnd(String part) {
+        int i = 1 + Character.charCount(part.codePointAt(1));
+        while (i < part.length()) {
+            int codePoint = part.codePointAt(i);
+            if (!Character.isJavaIdentifierPart(codePoint)) break;
+            i += Character.charCount(codePoint);
         }
-        return part;
+        return i;
+    }
+
+    private static final class Members {
+        boolean wildcard;
+        final Set<String> names = new HashSet<>();
     }
 }
@@ -28,6 +28,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.element.TypeElement;
@@ -155,6 +156,48 @@ public abstract class AbstractTypesTest {
         .isEqualTo("[java.util.Map<java.util.List<T>, java.util.Set<T[]>>]");
   }
 
+  @Test public void typeMirrorCache() {
+    TypeElement recursive = getElement(Recursive.class);
+    TypeName uncached = TypeName.get(recursive.asType());
+    try (TypeMirrorCache cache = TypeMirrorCache.open()) {
+      TypeName typeName = TypeName.get(recursive.asType());
+      assertThat(typeName).isEqualTo(uncached);
+      assertThat(TypeName.get(recursive.asType())).isSameInstanceAs(typeName);
+      assertThat(ClassName.get(recursive)).isSameInstanceAs(ClassName.get(recursive));
+      TypeVariableName t = TypeVariableName.get(recursive.getTypeParameters().get(0));
+      assertThat(t).isSameInstanceAs(((ParameterizedTypeName) typeName).typeArguments.get(0));
+      assertThat(t.bounds.toString())
+          .isEqualTo("[java.util.Map<java.util.List<T>, java.util.Set<T[]>>]");
+      assertThat(CodeBlock.of("$T", recursive).toString()).isEqualTo(typeName.toString());
+    }
+    assertThat(TypeName.get(recursive.asType())).isNotSameInstanceAs(uncached);
+  }
+
+  @Test public void typeMirrorCacheClosedOnAnotherThread() throws Exception {
+    TypeMirrorCache cache = TypeMirrorCache.open();
+    try {
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      Thread thread = new Thread(() -> {
+        try {
+          cache.close();
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      });
+      thread.start();
+      thread.join();
+      assertThat(failure.get()).isInstanceOf(IllegalStateException.class);
+      assertThat(failure.get()).hasMessageThat()
+          .isEqualTo("a type mirror cache must be closed on the thread that opened it");
+      assertThat(TypeMirrorCache.current()).isSameInstanceAs(cache);
+    } finally {
+      cache.close();
+    }
+    assertThat(TypeMirrorCache.current()).isNull();
+    cache.close();
+    TypeMirrorCache.open().close();
+  }
+
   @Test public void getPrimitiveTypeMirror() {
     assertThat(TypeName.get(getTypes().getPrimitiveType(TypeKind.BOOLEAN)))
         .isEqualTo(TypeName.BOOLEAN);
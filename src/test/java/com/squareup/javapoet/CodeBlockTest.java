@@ -38,6 +38,54 @@ public final class CodeBlockTest {
     assertThat(a.hashCode()).isEqualTo(b.hashCode());
   }
 
+  @Test public void equalsComparesWhatIsEmitted() {
+    CodeBlock a = CodeBlock.of("$N = $S + $L;\n", "taco", "a\"b", CodeBlock.of("$T.$L", String.class, 1));
+    CodeBlock b = CodeBlock.builder()
+        .add("taco = ")
+        .add("\"a\\\"b\" + $T.1;\n", String.class)
+        .build();
+    assertThat(a.toString()).isEqualTo(b.toString());
+    assertThat(a.equals(b)).isTrue();
+    assertThat(a.hashCode()).isEqualTo(b.hashCode());
+    assertThat(a.equals(CodeBlock.of("taco = \"a\\\"b\" + $T.2;\n", String.class))).isFalse();
+    assertThat(CodeBlock.of("$>a$W").equals(CodeBlock.of("$>a$Z"))).isFalse();
+  }
+
+  @Test public void equalsMatchesTextEquality() {
+    assertEqualText(CodeBlock.of("$T.valueOf(1)", String.class),
+        CodeBlock.of("java.lang.String.valueOf(1)"));
+    assertEqualText(CodeBlock.of("a$Wb;\n"), CodeBlock.of("a b;\n"));
+    assertEqualText(CodeBlock.of("a$Zb;\n"), CodeBlock.of("ab;\n"));
+    assertEqualText(CodeBlock.of("$>a$<"), CodeBlock.of("a"));
+    assertEqualText(CodeBlock.of("$>a\nb\n$<"), CodeBlock.of("a\n  b\n"));
+    assertEqualText(CodeBlock.of("$[a\nb;\n$]c"), CodeBlock.of("a\n    b;\nc"));
+    assertEqualText(CodeBlock.of("$[a;\n$]$>b\n$<"), CodeBlock.of("a;\n  b\n"));
+    assertThat(CodeBlock.of("$>a\nb$<")).isNotEqualTo(CodeBlock.of("a\nb"));
+  }
+
+  /**
+   * {@code $W} is compared as a space, though {@code toString()} wraps the line at it when the line
+   * is too long, and leaves out the text after the last one.
+   */
+  @Test public void equalsComparesWrappingSpacesAsSpaces() {
+    String longText = new String(new char[98]).replace('\0', 'x');
+    CodeBlock wrapped = CodeBlock.of(longText + "$Wyy;\n");
+    CodeBlock spaced = CodeBlock.of(longText + " yy;\n");
+    assertThat(wrapped.toString()).isNotEqualTo(spaced.toString());
+    assertThat(wrapped).isEqualTo(spaced);
+    assertThat(wrapped.hashCode()).isEqualTo(spaced.hashCode());
+
+    CodeBlock trailing = CodeBlock.of("a$Wb");
+    assertThat(trailing.toString()).isEqualTo("a");
+    assertThat(trailing).isEqualTo(CodeBlock.of("a b"));
+  }
+
+  private static void assertEqualText(CodeBlock a, CodeBlock b) {
+    assertThat(a.toString()).isEqualTo(b.toString());
+    assertThat(a).isEqualTo(b);
+    assertThat(a.hashCode()).isEqualTo(b.hashCode());
+  }
+
   @Test public void of() {
     CodeBlock a = CodeBlock.of("$L taco", "delicious");
     assertThat(a.toString()).isEqualTo("delicious taco");
@@ -210,6 +258,23 @@ public final class CodeBlockTest {
     }
   }
 
+  @Test public void indexHuge() {
+    try {
+      CodeBlock.of("$2147483647L", "taco");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat()
+          .isEqualTo("index 2147483647 for '$2147483647L' not in range (received 1 arguments)");
+    }
+    try {
+      CodeBlock.of("$999999999L", "taco");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat()
+          .isEqualTo("index 999999999 for '$999999999L' not in range (received 1 arguments)");
+    }
+  }
+
   @Test public void indexIsZero() {
     try {
       CodeBlock.builder().add("$0T", String.class).build();
@@ -348,4 +413,98 @@ public final class CodeBlockTest {
 
     assertThat(block.toString()).isEmpty();
   }
+
+  @Test public void compiledTemplate() {
+    CodeTemplate template = CodeTemplate.compile("$1T $2N = $2S");
+    CodeBlock block = CodeBlock.builder()
+        .add(template, String.class, "taco")
+        .add(template, Integer.class, "count")
+        .build();
+    assertThat(block.toString()).isEqualTo("java.lang.String taco = \"taco\"java.lang.Integer count = \"count\"");
+    assertThat(block).isEqualTo(CodeBlock.builder()
+        .add("$1T $2N = $2S", String.class, "taco")
+        .add("$1T $2N = $2S", Integer.class, "count")
+        .build());
+  }
+
+  @Test public void compiledNamedTemplate() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("text", "tacos");
+    CodeBlock block = CodeBlock.builder()
+        .addNamed(CodeTemplate.compileNamed("$text:S $$ $text:L"), map)
+        .build();
+    assertThat(block.toString()).isEqualTo("\"tacos\" $ tacos");
+  }
+
+  @Test public void compileRejectsMalformedFormat() {
+    try {
+      CodeTemplate.compile("$L taco $");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("dangling format characters in '$L taco $'");
+    }
+    try {
+      CodeTemplate.compile("$1 taco");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("invalid format string: '$1 taco'");
+    }
+  }
+
+  @Test public void shortFormatTemplatesAreCached() {
+    String format = "$T taco = new $T()";
+    assertThat(CodeTemplate.positional(format)).isSameInstanceAs(CodeTemplate.positional(format));
+    assertThat(CodeTemplate.named("$taco:L")).isSameInstanceAs(CodeTemplate.named("$taco:L"));
+
+    StringBuilder longFormat = new StringBuilder("$L");
+    while (longFormat.length() <= CodeTemplate.MAX_CACHED_LENGTH) longFormat.append(" taco");
+    assertThat(CodeTemplate.positional(longFormat.toString()))
+        .isNotSameInstanceAs(CodeTemplate.positional(longFormat.toString()));
+  }
+
+  @Test public void formatTemplateCacheDropsLeastRecentlyUsed() {
+    CodeTemplate unused = CodeTemplate.positional("$L unused taco");
+    CodeTemplate used = CodeTemplate.positional("$L used taco");
+    for (int i = 0; i < CodeTemplate.CACHE_SIZE; i++) {
+      CodeTemplate.positional("$L taco " + i);
+      if (i % 16 == 0) CodeTemplate.positional("$L used taco");
+    }
+    assertThat(CodeTemplate.positional("$L used taco")).isSameInstanceAs(used);
+    assertThat(CodeTemplate.positional("$L unused taco")).isNotSameInstanceAs(unused);
+  }
+
+  @Test public void templateArgumentStyleMismatch() {
+    try {
+      CodeBlock.builder().add(CodeTemplate.compileNamed("$text:S"), "tacos");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("template has named arguments: '$text:S'");
+    }
+  }
+
+  @Test public void formatParts() {
+    CodeBlock block = CodeBlock.builder()
+        .add("$T.valueOf($S)$W", String.class, "taco")
+        .indent()
+        .add("$$")
+        .build();
+    assertThat(block.formatParts)
+        .containsExactly("$T", ".valueOf(", "$S", ")", "$W", "$>", "$$")
+        .inOrder();
+    assertThat(block.toBuilder().build().formatParts).isEqualTo(block.formatParts);
+  }
+
+  @Test public void toStringIsMemoized() {
+    CodeBlock small = CodeBlock.of("$T.out.println($S);\n", System.class, "taco");
+    assertThat(small.toString()).isSameInstanceAs(small.toString());
+
+    CodeBlock.Builder builder = CodeBlock.builder();
+    for (int i = 0; i < 500; i++) {
+      builder.addStatement("$T.out.println($L)", System.class, i);
+    }
+    CodeBlock large = builder.build();
+    String rendered = large.toString();
+    assertThat(rendered.length()).isGreaterThan(4096);
+    assertThat(large.toString()).isEqualTo(rendered);
+  }
 }
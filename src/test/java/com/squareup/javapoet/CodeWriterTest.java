@@ -5,6 +5,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Set;
 import java.util.Map;
@@ -94,6 +95,25 @@ public class CodeWriterTest {
         assertThat(out.toString()).isEqualTo("emptyList()");
     }
 
+    @Test
+    public void staticImportMemberResolution() throws IOException {
+        StringBuilder out = new StringBuilder();
+        Set<String> staticImports = new HashSet<>(Arrays.asList(
+                "java.util.Collections.emptyList", "java.util.concurrent.TimeUnit.*"));
+        CodeWriter writer = new CodeWriter(out, "  ", staticImports, Collections.emptySet());
+        ClassName collections = ClassName.get("java.util", "Collections");
+        ClassName timeUnit = ClassName.get("java.util.concurrent", "TimeUnit");
+        assertThat(writer.isStaticallyImported(collections, ".emptyList()")).isTrue();
+        assertThat(writer.isStaticallyImported(collections, ".emptyList")).isTrue();
+        assertThat(writer.isStaticallyImported(collections, ".emptyListOf()")).isFalse();
+        assertThat(writer.isStaticallyImported(collections, ".emptyMap()")).isFalse();
+        assertThat(writer.isStaticallyImported(collections, ".")).isFalse();
+        assertThat(writer.isStaticallyImported(timeUnit, ".SECONDS.toMillis(1)")).isTrue();
+        assertThat(writer.isStaticallyImported(timeUnit, ".1")).isFalse();
+        assertThat(writer.isStaticallyImported(ClassName.get("java.util", "List"), ".of()"))
+                .isFalse();
+    }
+
     @Test
     public void emitLiteralTypeSpec() throws IOException {
         StringBuilder out = new StringBuilder();
@@ -193,4 +213,52 @@ public class CodeWriterTest {
         writer.popType();
         writer.popType();
     }
+
+    @Test
+    public void lineBreaks() throws IOException {
+        StringBuilder out = new StringBuilder();
+        CodeWriter writer = new CodeWriter(out);
+        writer.indent();
+        writer.emit("a\r\nb\rc\u2028d\n\ne");
+        assertThat(out.toString()).isEqualTo("a\n  b\n  c\n  d\n\n  e");
+    }
+
+    @Test
+    public void modifiersInDeclarationOrder() throws IOException {
+        StringBuilder out = new StringBuilder();
+        CodeWriter writer = new CodeWriter(out);
+        Set<Modifier> modifiers = new LinkedHashSet<>(
+                Arrays.asList(Modifier.FINAL, Modifier.STATIC, Modifier.PUBLIC));
+        writer.emitModifiers(modifiers, Collections.singleton(Modifier.STATIC));
+        assertThat(out.toString()).isEqualTo("public final ");
+    }
+
+    @Test
+    public void nestedTypesShadowUntilPopped() throws IOException {
+        TypeSpec inner = TypeSpec.classBuilder("Entry")
+                .addType(TypeSpec.classBuilder("Map").build())
+                .build();
+        TypeSpec outer = TypeSpec.classBuilder("Outer").addType(inner).build();
+        ClassName map = ClassName.get("java.util", "Map");
+        ClassName entry = ClassName.get("java.util", "Map", "Entry");
+        Map<String, ClassName> imports = new HashMap<>();
+        imports.put("Map", map);
+        CodeWriter writer = new CodeWriter(new StringBuilder(), "  ", imports,
+                Collections.emptySet(), Collections.emptySet());
+
+        writer.pushPackage("com.example");
+        writer.pushType(outer);
+        assertThat(writer.lookupName(map)).isEqualTo("Map");
+        assertThat(writer.lookupName(entry)).isEqualTo("Map.Entry");
+        writer.pushType(inner);
+        assertThat(writer.lookupName(map)).isEqualTo("java.util.Map");
+        assertThat(writer.lookupName(ClassName.get("com.example", "Outer", "Entry", "Map")))
+                .isEqualTo("Map");
+        writer.popType();
+        assertThat(writer.lookupName(map)).isEqualTo("Map");
+        assertThat(writer.lookupName(ClassName.get("com.example", "Outer", "Entry")))
+                .isEqualTo("Entry");
+        writer.popType();
+        writer.popPackage();
+    }
 }
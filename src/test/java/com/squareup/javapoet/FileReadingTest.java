@@ -16,10 +16,12 @@
 package com.squareup.javapoet;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.Callable;
 import javax.lang.model.element.Modifier;
 import javax.tools.DiagnosticCollector;
@@ -83,6 +85,28 @@ public class FileReadingTest {
     assertThat(bytes).isEqualTo(javaFile.toString().getBytes(UTF_8));
   }
   
+  @Test public void javaFileObjectRendersOnce() throws IOException {
+    AtomicInteger renders = new AtomicInteger();
+    Object value = new Object() {
+      @Override public String toString() {
+        return "\"Pi\u00f1ata " + renders.incrementAndGet() + "\"";
+      }
+    };
+    JavaFile javaFile = JavaFile.builder("foo", TypeSpec.classBuilder("Test")
+        .addField(FieldSpec.builder(String.class, "NAME").initializer("$L", value).build())
+        .build())
+        .build();
+    JavaFileObject javaFileObject = javaFile.toJavaFileObject();
+
+    String content = javaFileObject.getCharContent(true).toString();
+    assertThat(content).contains("String NAME = \"Pi\u00f1ata 1\";");
+    assertThat(javaFileObject.getCharContent(true).toString()).isEqualTo(content);
+    assertThat(ByteStreams.toByteArray(javaFileObject.openInputStream()))
+        .isEqualTo(content.getBytes(UTF_8));
+    assertThat(CharStreams.toString(javaFileObject.openReader(true))).isEqualTo(content);
+    assertThat(renders.get()).isEqualTo(1);
+  }
+
   @Test public void compileJavaFile() throws Exception {
     final String value = "Hello World!";
     TypeSpec type = TypeSpec.classBuilder("Test")
@@ -19,12 +19,23 @@ import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -33,6 +44,8 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mockito;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_16;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
@@ -114,6 +127,75 @@ public final class FileWritingTest {
     assertThat(Files.exists(bazPath)).isTrue();
   }
 
+  @Test public void writeAll() throws IOException {
+    Files.createFile(fsRoot.resolve("blocked"));
+    List<JavaFile> javaFiles = Arrays.asList(
+        JavaFile.builder("foo", TypeSpec.classBuilder("Taco").build()).build(),
+        JavaFile.builder("foo", TypeSpec.classBuilder("Burrito").build()).build(),
+        JavaFile.builder("blocked.bar", TypeSpec.classBuilder("Nacho").build()).build(),
+        JavaFile.builder("", TypeSpec.classBuilder("Salsa").build()).build());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<JavaFile.WriteResult> results;
+    try {
+      results = JavaFile.writeAll(javaFiles, fsRoot, executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(results).hasSize(4);
+    assertThat(results.get(0).javaFile).isSameInstanceAs(javaFiles.get(0));
+    assertThat(results.get(0).path).isEqualTo(fsRoot.resolve(fs.getPath("foo", "Taco.java")));
+    assertThat(results.get(1).path).isEqualTo(fsRoot.resolve(fs.getPath("foo", "Burrito.java")));
+    assertThat(results.get(2).isWritten()).isFalse();
+    assertThat(results.get(2).path).isNull();
+    assertThat(results.get(2).failure).isInstanceOf(IOException.class);
+    assertThat(results.get(3).path).isEqualTo(fsRoot.resolve("Salsa.java"));
+    assertThat(new String(Files.readAllBytes(results.get(0).path), UTF_8))
+        .isEqualTo(javaFiles.get(0).toString());
+  }
+
+  @Test public void writeAllFailsDuplicateFiles() throws IOException {
+    List<JavaFile> javaFiles = Arrays.asList(
+        JavaFile.builder("foo", TypeSpec.classBuilder("Taco").build()).build(),
+        JavaFile.builder("foo", TypeSpec.classBuilder("Taco")
+            .addModifiers(Modifier.FINAL)
+            .build()).build());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    List<JavaFile.WriteResult> results;
+    try {
+      results = JavaFile.writeAll(javaFiles, fsRoot, executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(results.get(0).isWritten()).isTrue();
+    assertThat(results.get(1).isWritten()).isFalse();
+    assertThat(results.get(1).failure).isInstanceOf(IllegalArgumentException.class);
+    assertThat(results.get(1).failure).hasMessageThat().isEqualTo("duplicate file: foo.Taco");
+    assertThat(new String(Files.readAllBytes(results.get(0).path), UTF_8))
+        .isEqualTo(javaFiles.get(0).toString());
+  }
+
+  @Test public void writeIfChangedSkipsUnchangedFiles() throws IOException {
+    JavaFile javaFile = JavaFile.builder("foo", TypeSpec.classBuilder("Taco").build()).build();
+    JavaFile.WriteResult first = javaFile.writeIfChanged(fsRoot);
+    assertThat(first.unchanged).isFalse();
+    FileTime written = FileTime.fromMillis(1000);
+    Files.setLastModifiedTime(first.path, written);
+
+    JavaFile.WriteResult second = javaFile.writeIfChanged(fsRoot);
+    assertThat(second.unchanged).isTrue();
+    assertThat(second.path).isEqualTo(first.path);
+    assertThat(Files.getLastModifiedTime(second.path)).isEqualTo(written);
+
+    JavaFile changed = JavaFile.builder("foo", TypeSpec.classBuilder("Taco")
+        .addModifiers(Modifier.FINAL)
+        .build()).build();
+    JavaFile.WriteResult third = changed.writeIfChanged(fsRoot);
+    assertThat(third.unchanged).isFalse();
+    assertThat(new String(Files.readAllBytes(third.path), UTF_8)).isEqualTo(changed.toString());
+  }
+
   @Test public void fileNestedClasses() throws IOException {
     TypeSpec type = TypeSpec.classBuilder("Test").build();
     JavaFile.builder("foo", type).build().writeTo(tmp.getRoot());
@@ -167,6 +249,33 @@ public final class FileWritingTest {
     assertThat(filer.getOriginatingElements(testPath2)).containsExactly(element2_1, element2_2);
   }
 
+  @Test public void filerResolvesOriginatingElementHandles() throws IOException {
+    Element element = Mockito.mock(Element.class);
+    TypeElement typeElement = Mockito.mock(TypeElement.class);
+    Elements elements = Mockito.mock(Elements.class);
+    Mockito.when(elements.getTypeElement("example.Source")).thenReturn(typeElement);
+    TypeSpec test = TypeSpec.classBuilder("Test")
+        .addOriginatingElement(element)
+        .addType(TypeSpec.classBuilder("Nested")
+            .addOriginatingElement(OriginatingElement.ofType(ClassName.get("example", "Source")))
+            .addOriginatingElement(OriginatingElement.ofType(ClassName.get("example", "Gone")))
+            .build())
+        .build();
+    JavaFile javaFile = JavaFile.builder("example", test).build();
+
+    try {
+      javaFile.writeTo(filer);
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessageThat()
+          .isEqualTo("Test has originating element handles, which need Elements to resolve");
+    }
+
+    javaFile.writeTo(filer, elements);
+    Path testPath = fsRoot.resolve(fs.getPath("example", "Test.java"));
+    assertThat(filer.getOriginatingElements(testPath)).containsExactly(element, typeElement);
+  }
+
   @Test public void filerClassesWithTabIndent() throws IOException {
     TypeSpec test = TypeSpec.classBuilder("Test")
         .addField(Date.class, "madeFreshDate")
@@ -223,4 +332,28 @@ public final class FileWritingTest {
     // Cast to avoid ambiguity between assertThat(Path) and assertThat(Iterable<?>)
     assertThat((Iterable<?>) filePath).isEqualTo(fsRoot.resolve(fs.getPath("foo", "Taco.java")));
   }
+
+  @Test public void encodingSinkMatchesStringEncoding() throws IOException {
+    String text = "class Pi\u00f1ata {\n  // \ud83c\udf2e and \u00a1s\u00ed!\n}\n";
+    for (Charset charset : Arrays.asList(UTF_8, ISO_8859_1, UTF_16)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (CodeSink sink = CodeSink.encoding(Channels.newChannel(bytes), charset)) {
+        sink.append(text, 0, 20);
+        sink.append(text.charAt(20));
+        sink.append(text, 21, text.length());
+      }
+      assertThat(bytes.toByteArray()).isEqualTo(text.getBytes(charset));
+    }
+  }
+
+  @Test public void teeSink() throws IOException {
+    JavaFile javaFile = JavaFile.builder("foo", TypeSpec.classBuilder("Taco").build()).build();
+    StringBuilder direct = new StringBuilder();
+    StringWriter buffered = new StringWriter();
+    try (CodeSink sink = CodeSink.tee(CodeSink.of(direct), CodeSink.buffered(buffered))) {
+      javaFile.writeTo(sink);
+    }
+    assertThat(direct.toString()).isEqualTo(javaFile.toString());
+    assertThat(buffered.toString()).isEqualTo(javaFile.toString());
+  }
 }
@@ -22,6 +22,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
@@ -33,6 +34,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public final class JavaFileTest {
@@ -499,4 +501,196 @@ public final class JavaFileTest {
         + "  }\n"
         + "}\n");
   }
+
+  @Test public void wrappingUsesImportedNames() {
+    ClassName builder = ClassName.get("com.squareup.tacos.kitchen.preparation", "TortillaBuilder");
+    ClassName salsa = ClassName.get("com.squareup.tacos.kitchen.condiments", "Salsa");
+    String source = JavaFile.builder("com.squareup.tacos",
+        TypeSpec.classBuilder("Taco")
+            .addMethod(MethodSpec.methodBuilder("prepare")
+                .addStatement("$T.start($T.HOT,$W$T.MILD,$W$T.VERDE)", builder, salsa, salsa, salsa)
+                .addStatement("$T.start($T.HOT,$W$T.MILD,$W$T.VERDE)", builder, salsa, salsa,
+                    ClassName.get("com.squareup.tacos.kitchen.competitors", "Salsa"))
+                .build())
+            .build())
+        .build()
+        .toString();
+    assertThat(source).isEqualTo(""
+        + "package com.squareup.tacos;\n"
+        + "\n"
+        + "import com.squareup.tacos.kitchen.condiments.Salsa;\n"
+        + "import com.squareup.tacos.kitchen.preparation.TortillaBuilder;\n"
+        + "\n"
+        + "class Taco {\n"
+        + "  void prepare() {\n"
+        + "    TortillaBuilder.start(Salsa.HOT, Salsa.MILD, Salsa.VERDE);\n"
+        + "    TortillaBuilder.start(Salsa.HOT, Salsa.MILD,\n"
+        + "        com.squareup.tacos.kitchen.competitors.Salsa.VERDE);\n"
+        + "  }\n"
+        + "}\n");
+  }
+
+  @Test public void wrapAtLineStartBeforeTrailingNewline() {
+    String source = JavaFile.builder("com.squareup.tacos",
+        TypeSpec.classBuilder("Taco")
+            .addMethod(MethodSpec.methodBuilder("prepare")
+                .addCode("int count;\n$W$T shell", ClassName.get("com.squareup.tacos.kitchen", "Shell"))
+                .build())
+            .build())
+        .build()
+        .toString();
+    assertThat(source).isEqualTo(""
+        + "package com.squareup.tacos;\n"
+        + "\n"
+        + "import com.squareup.tacos.kitchen.Shell;\n"
+        + "\n"
+        + "class Taco {\n"
+        + "  void prepare() {\n"
+        + "    int count;\n"
+        + "     Shell shell}\n"
+        + "}\n");
+  }
+
+  @Test public void declaredImports() {
+    ClassName list = ClassName.get("java.util", "List");
+    ClassName map = ClassName.get("java.util", "Map");
+    String source = JavaFile.builder("com.squareup.tacos",
+        TypeSpec.classBuilder("Taco")
+            .addField(list, "toppings")
+            .addField(ClassName.get("java.util", "Set"), "sauces")
+            .build())
+        .declareImports(list, map)
+        .build()
+        .toString();
+    assertThat(source).isEqualTo(""
+        + "package com.squareup.tacos;\n"
+        + "\n"
+        + "import java.util.List;\n"
+        + "import java.util.Map;\n"
+        + "\n"
+        + "class Taco {\n"
+        + "  List toppings;\n"
+        + "\n"
+        + "  java.util.Set sauces;\n"
+        + "}\n");
+  }
+
+  @Test public void declaredImportsSkipTypesNamedLikeDeclaredTypes() {
+    ClassName list = ClassName.get("java.util", "List");
+    ClassName map = ClassName.get("java.util", "Map");
+    ClassName set = ClassName.get("java.util", "Set");
+    String source = JavaFile.builder("com.example",
+        TypeSpec.classBuilder("List")
+            .addModifiers(Modifier.PUBLIC)
+            .addField(list, "list")
+            .addField(map, "map")
+            .addField(set, "set")
+            .addType(TypeSpec.classBuilder("Map").build())
+            .build())
+        .declareImports(list, map, set)
+        .build()
+        .toString();
+    assertThat(source).isEqualTo(""
+        + "package com.example;\n"
+        + "\n"
+        + "import java.util.Set;\n"
+        + "\n"
+        + "public class List {\n"
+        + "  java.util.List list;\n"
+        + "\n"
+        + "  java.util.Map map;\n"
+        + "\n"
+        + "  Set set;\n"
+        + "\n"
+        + "  class Map {\n"
+        + "  }\n"
+        + "}\n");
+  }
+
+  @Test public void declaredImportsRejectConflicts() {
+    JavaFile.Builder builder = JavaFile.builder("com.squareup.tacos",
+        TypeSpec.classBuilder("Taco").build());
+    try {
+      builder.declareImports(ClassName.get("java.util", "List"), ClassName.get("java.awt", "List"));
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat()
+          .isEqualTo("conflicting imports: java.util.List and java.awt.List");
+    }
+  }
+
+  @Test public void membersRenderedInParallel() {
+    ClassName utilList = ClassName.get("java.util", "List");
+    ClassName awtList = ClassName.get("java.awt", "List");
+    TypeSpec.Builder taco = TypeSpec.classBuilder("Taco")
+        .addTypeVariable(TypeVariableName.get("T"))
+        .addField(FieldSpec.builder(int.class, "COUNT", Modifier.STATIC).initializer("$L", 3).build())
+        .addStaticBlock(CodeBlock.of("$T.out.println(COUNT);\n", System.class))
+        .addField(awtList, "awtList");
+    for (int i = 0; i < 50; i++) {
+      taco.addMethod(MethodSpec.methodBuilder("method" + i)
+          .returns(i % 2 == 0 ? utilList : awtList)
+          .addParameter(TypeVariableName.get("T"), "t")
+          .addStatement("return $T.call($S, $L, t)", ClassName.get("com.squareup.tacos", "Helper"),
+              "a very long string literal that forces the statement to wrap at the column limit", i)
+          .build());
+    }
+    taco.addType(TypeSpec.classBuilder("Filling")
+        .addField(utilList, "layers")
+        .addMethod(MethodSpec.methodBuilder("fold").addStatement("$T.sort(layers)",
+            Collections.class).build())
+        .build());
+    JavaFile.Builder file = JavaFile.builder("com.squareup.tacos", taco.build());
+
+    String sequential = file.build().toString();
+    String parallel = file.renderMembersOn(ForkJoinPool.commonPool()).build().toString();
+    assertThat(parallel).isEqualTo(sequential);
+    assertThat(parallel).contains("import java.awt.List;\n");
+    assertThat(parallel).contains("  java.util.List method0(T t) {\n");
+  }
+
+  @Test public void customAnnotationFormatterImports() {
+    ClassName sauce = ClassName.get("com.squareup.tacos.kitchen", "Sauce");
+    AnnotationSpec spicy = AnnotationSpec.builder(ClassName.get("com.squareup.tacos.kitchen", "Spicy"))
+        .formatter((annotationSpec, codeWriter, inline) ->
+            codeWriter.emit("@$T($T.class)", annotationSpec.type, sauce))
+        .build();
+    String source = JavaFile.builder("com.squareup.tacos",
+        TypeSpec.classBuilder("Taco")
+            .addAnnotation(spicy)
+            .build())
+        .build()
+        .toString();
+    assertThat(source).isEqualTo(""
+        + "package com.squareup.tacos;\n"
+        + "\n"
+        + "import com.squareup.tacos.kitchen.Sauce;\n"
+        + "import com.squareup.tacos.kitchen.Spicy;\n"
+        + "\n"
+        + "@Spicy(Sauce.class)\n"
+        + "class Taco {\n"
+        + "}\n");
+  }
+
+  @Test public void staticallyImportedMemberInNestedCode() {
+    ClassName timeUnit = ClassName.get("java.util.concurrent", "TimeUnit");
+    CodeBlock delay = CodeBlock.of("$T.SECONDS.toMillis(1)", timeUnit);
+    String source = JavaFile.builder("com.squareup.tacos",
+        TypeSpec.classBuilder("Taco")
+            .addField(FieldSpec.builder(long.class, "delay")
+                .initializer("$L", delay)
+                .build())
+            .build())
+        .addStaticImport(timeUnit, "SECONDS")
+        .build()
+        .toString();
+    assertThat(source).isEqualTo(""
+        + "package com.squareup.tacos;\n"
+        + "\n"
+        + "import static java.util.concurrent.TimeUnit.SECONDS;\n"
+        + "\n"
+        + "class Taco {\n"
+        + "  long delay = SECONDS.toMillis(1);\n"
+        + "}\n");
+  }
 }
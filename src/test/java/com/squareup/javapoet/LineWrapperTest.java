@@ -204,4 +204,14 @@ public final class LineWrapperTest {
     lineWrapper.close();
     assertThat(out.toString()).isEqualTo("abcde fghi\nklmnopq\nrs\n    tuvwxyz1");
   }
+
+  @Test public void appendRange() throws Exception {
+    StringBuffer out = new StringBuffer();
+    LineWrapper lineWrapper = new LineWrapper(out, "  ", 10);
+    lineWrapper.append("xxabcdexx", 2, 7);
+    lineWrapper.wrappingSpace(2);
+    lineWrapper.append("xxfghijxx", 2, 7);
+    lineWrapper.close();
+    assertThat(out.toString()).isEqualTo("abcde\n    fghij");
+  }
 }
@@ -26,6 +26,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
@@ -171,6 +173,41 @@ public final class MethodSpecTest {
         + "}\n");
   }
 
+  @Test public void snapshotOfTypeElement() throws Exception {
+    TypeElementSnapshot everything = TypeElementSnapshot.of(getElement(Everything.class));
+    assertThat(everything.className).isEqualTo(ClassName.get(Everything.class));
+    assertThat(everything.superclass).isEqualTo(ClassName.OBJECT);
+    TypeElementSnapshot.Executable method = getOnlyElement(everything.methodsNamed("everything"));
+    assertThat(method.parameters.get(0).type.toString()).isEqualTo("java.lang.String");
+    assertThat(method.exceptions).hasSize(2);
+    assertThat(method.annotations).containsExactly(AnnotationSpec.builder(Deprecated.class).build());
+    assertThat(getOnlyElement(everything.constructors).isConstructor()).isTrue();
+
+    // The snapshot is taken on this thread, but specs can be built from it on any other.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      MethodSpec overriding = executor.submit(() -> method.overridingBuilder().build()).get();
+      assertThat(overriding)
+          .isEqualTo(MethodSpec.overriding(getOnlyElement(methodsIn(
+              getElement(Everything.class).getEnclosedElements()))).build());
+    } finally {
+      executor.shutdown();
+    }
+
+    TypeElementSnapshot invalid = TypeElementSnapshot.of(getElement(InvalidOverrideMethods.class));
+    for (TypeElementSnapshot.Executable executable : invalid.methods) {
+      assertThat(executable.overriding).isNull();
+    }
+    TypeElementSnapshot finalClass = TypeElementSnapshot.of(getElement(FinalClass.class));
+    assertThat(getOnlyElement(finalClass.methods).overriding).isNull();
+    try {
+      getOnlyElement(finalClass.methods).overridingBuilder();
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("cannot override method()");
+    }
+  }
+
   @Test public void overrideDoesNotCopyOverrideAnnotation() {
     TypeElement classElement = getElement(HasAnnotation.class);
     ExecutableElement exec = getOnlyElement(methodsIn(classElement.getEnclosedElements()));
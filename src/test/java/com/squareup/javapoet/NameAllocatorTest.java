@@ -15,6 +15,15 @@
  */
 package com.squareup.javapoet;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -47,6 +56,23 @@ public final class NameAllocatorTest {
     assertThat(nameAllocator.get(3)).isEqualTo("foo__");
   }
 
+  @Test public void nameCollisionAfterSuffixedName() {
+    NameAllocator nameAllocator = new NameAllocator();
+    assertThat(nameAllocator.newName("foo__")).isEqualTo("foo__");
+    assertThat(nameAllocator.newName("foo")).isEqualTo("foo");
+    assertThat(nameAllocator.newName("foo")).isEqualTo("foo_");
+    assertThat(nameAllocator.newName("foo")).isEqualTo("foo___");
+    assertThat(nameAllocator.newName("foo_")).isEqualTo("foo____");
+    assertThat(nameAllocator.newName("foo")).isEqualTo("foo_____");
+  }
+
+  @Test public void validIdentifierIsNotCopied() {
+    String suggestion = new String("fooBar$1");
+    assertThat(NameAllocator.toJavaIdentifier(suggestion)).isSameInstanceAs(suggestion);
+    assertThat(NameAllocator.toJavaIdentifier("foo bar")).isEqualTo("foo_bar");
+    assertThat(NameAllocator.toJavaIdentifier("")).isEmpty();
+  }
+
   @Test public void characterMappingSubstitute() {
     NameAllocator nameAllocator = new NameAllocator();
     assertThat(nameAllocator.newName("a-b", 1)).isEqualTo("a_b");
@@ -107,4 +133,84 @@ public final class NameAllocatorTest {
     assertThat(innerAllocator2.newName("foo", 2)).isEqualTo("foo_");
     assertThat(innerAllocator2.newName("bar", 3)).isEqualTo("bar");
   }
+
+  @Test public void concurrentUsage() throws Exception {
+    NameAllocator nameAllocator = NameAllocator.concurrent();
+    nameAllocator.newName("foo", "outer");
+    int threads = 4;
+    int namesPerThread = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<String>>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(executor.submit(() -> {
+          List<String> names = new ArrayList<>();
+          for (int i = 0; i < namesPerThread; i++) {
+            names.add(nameAllocator.newName("foo", thread * namesPerThread + i));
+          }
+          return names;
+        }));
+      }
+      Set<String> names = new HashSet<>();
+      for (Future<List<String>> future : futures) {
+        names.addAll(future.get());
+      }
+      // Every thread got different names, with no underscores skipped.
+      assertThat(names).hasSize(threads * namesPerThread);
+      assertThat(names).doesNotContain("foo");
+      assertThat(Collections.max(names, Comparator.comparingInt(String::length)))
+          .hasLength("foo".length() + threads * namesPerThread);
+      assertThat(nameAllocator.get("outer")).isEqualTo("foo");
+    } finally {
+      executor.shutdown();
+    }
+
+    try {
+      nameAllocator.newScope().newName("bar", "outer");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat()
+          .isEqualTo("tag outer cannot be used for both 'foo' and 'bar'");
+    }
+  }
+
+  @Test public void scopeUsage() {
+    NameAllocator outerAllocator = new NameAllocator();
+    outerAllocator.newName("foo", 1);
+    outerAllocator.newName("foo", 2);
+
+    NameAllocator innerAllocator1 = outerAllocator.newScope();
+    assertThat(innerAllocator1.newName("bar", 3)).isEqualTo("bar");
+    assertThat(innerAllocator1.newName("foo", 4)).isEqualTo("foo__");
+    assertThat(innerAllocator1.get(1)).isEqualTo("foo");
+    assertThat(innerAllocator1.get(4)).isEqualTo("foo__");
+
+    NameAllocator innermostAllocator = innerAllocator1.newScope();
+    assertThat(innermostAllocator.newName("bar", 5)).isEqualTo("bar_");
+    assertThat(innermostAllocator.get(3)).isEqualTo("bar");
+
+    NameAllocator innerAllocator2 = outerAllocator.newScope();
+    assertThat(innerAllocator2.newName("bar", 3)).isEqualTo("bar");
+    assertThat(innerAllocator2.newName("foo", 4)).isEqualTo("foo__");
+    try {
+      innerAllocator2.get(5);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("unknown tag: 5");
+    }
+    try {
+      innerAllocator2.newName("baz", 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat()
+          .isEqualTo("tag 1 cannot be used for both 'foo' and 'baz'");
+    }
+    try {
+      outerAllocator.get(3);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("unknown tag: 3");
+    }
+  }
 }
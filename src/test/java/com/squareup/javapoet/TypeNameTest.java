@@ -15,9 +15,16 @@
  */
 package com.squareup.javapoet;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
@@ -109,6 +116,65 @@ public class TypeNameTest {
         TestGeneric.class.getCanonicalName() + ".NestedNonGeneric");
   }
 
+  @Test public void reflectionConversionsAreCached() throws Exception {
+    assertThat(ClassName.get(TestGeneric.Inner.class))
+        .isSameInstanceAs(ClassName.get(TestGeneric.Inner.class));
+    assertThat(TypeName.get(String[].class)).isSameInstanceAs(TypeName.get(String[].class));
+    assertThat(TypeName.get(int.class)).isSameInstanceAs(TypeName.INT);
+    Method method = getClass().getDeclaredMethod("testGenericInnerLong");
+    assertThat(TypeName.get(method.getGenericReturnType()))
+        .isSameInstanceAs(TypeName.get(method.getGenericReturnType()));
+  }
+
+  @Test public void reflectionConversionsDontKeepClassLoaders() throws Exception {
+    WeakReference<ClassLoader> loader = convertInThrowawayLoader();
+    for (int i = 0; i < 50 && loader.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(loader.get()).isNull();
+  }
+
+  /** Converts a class of a new class loader, and returns that loader. */
+  private static WeakReference<ClassLoader> convertInThrowawayLoader() throws Exception {
+    ClassLoader loader = new ThrowawayClassLoader();
+    Class<?> inner = loader.loadClass(TestGeneric.Inner.class.getName());
+    assertThat(inner).isNotSameInstanceAs(TestGeneric.Inner.class);
+    assertThat(ClassName.get(inner)).isEqualTo(ClassName.get(TestGeneric.Inner.class));
+    assertThat(TypeName.get(inner)).isEqualTo(ClassName.get(TestGeneric.Inner.class));
+    Method method = loader.loadClass(TypeNameTest.class.getName())
+        .getDeclaredMethod("testGenericInnerLong");
+    assertThat(TypeName.get(method.getGenericReturnType())).isEqualTo(TypeName.get(
+        TypeNameTest.class.getDeclaredMethod("testGenericInnerLong").getGenericReturnType()));
+    return new WeakReference<>(loader);
+  }
+
+  /** Defines its own copy of this test class and the classes nested in it. */
+  private static final class ThrowawayClassLoader extends ClassLoader {
+    ThrowawayClassLoader() {
+      super(TypeNameTest.class.getClassLoader());
+    }
+
+    @Override protected Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+      if (!name.equals(TypeNameTest.class.getName())
+          && !name.startsWith(TypeNameTest.class.getName() + "$")) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded != null) return loaded;
+        try {
+          URL resource = getParent().getResource(name.replace('.', '/') + ".class");
+          byte[] bytes = Files.readAllBytes(Paths.get(resource.toURI()));
+          return defineClass(name, bytes, 0, bytes.length);
+        } catch (IOException | URISyntaxException e) {
+          throw new ClassNotFoundException(name, e);
+        }
+      }
+    }
+  }
+
   @Test public void equalsAndHashCodePrimitive() {
     assertEqualsHashCodeAndToString(TypeName.BOOLEAN, TypeName.BOOLEAN);
     assertEqualsHashCodeAndToString(TypeName.BYTE, TypeName.BYTE);
@@ -161,6 +227,66 @@ public class TypeNameTest {
         WildcardTypeName.supertypeOf(String.class));
   }
 
+  @Test public void equalsAgreesWithToString() {
+    AnnotationSpec other = AnnotationSpec.builder(Deprecated.class).build();
+    assertEqualsHashCodeAndToString(ClassName.get("a.b", "C"), ClassName.get("a", "b", "C"));
+    assertEqualsHashCodeAndToString(ClassName.get("a.b", "C").annotated(ANNOTATION_SPEC),
+        ClassName.get("a", "b", "C").annotated(ANNOTATION_SPEC));
+    assertNotEquals(ClassName.get("a", "B", "C").annotated(ANNOTATION_SPEC),
+        ClassName.get("a", "B", "C").annotated(other));
+    assertNotEquals(((ClassName) ClassName.get("a", "B").annotated(ANNOTATION_SPEC)).nestedClass("C"),
+        ClassName.get("a", "B", "C"));
+    assertEqualsHashCodeAndToString(
+        WildcardTypeName.subtypeOf(String.class).annotated(ANNOTATION_SPEC),
+        WildcardTypeName.subtypeOf(String.class));
+    assertNotEquals(WildcardTypeName.subtypeOf(String.class),
+        WildcardTypeName.supertypeOf(String.class));
+    assertEqualsHashCodeAndToString(TypeVariableName.get("T", Number.class),
+        TypeVariableName.get("T"));
+    assertEqualsHashCodeAndToString(
+        ArrayTypeName.of(ArrayTypeName.of(TypeName.INT).annotated(ANNOTATION_SPEC)),
+        ArrayTypeName.of(ArrayTypeName.of(TypeName.INT).annotated(ANNOTATION_SPEC)));
+    assertNotEquals(ArrayTypeName.of(TypeName.INT).annotated(ANNOTATION_SPEC),
+        ArrayTypeName.of(TypeName.INT.annotated(ANNOTATION_SPEC)));
+    ParameterizedTypeName outer = ParameterizedTypeName.get(ClassName.get("a", "Outer"),
+        TypeVariableName.get("T"));
+    assertEqualsHashCodeAndToString(
+        outer.nestedClass("Inner", Collections.singletonList(ClassName.get(String.class))),
+        outer.nestedClass("Inner", Collections.singletonList(ClassName.get(String.class))));
+    assertNotEquals(outer.nestedClass("Inner"), outer.nestedClass("Other"));
+    assertNotEquals(TypeName.INT, TypeName.INT.annotated(ANNOTATION_SPEC));
+  }
+
+  @Test public void intern() {
+    ClassName entry = ClassName.get("java.util", "Map", "Entry").intern();
+    assertThat(ClassName.get("java.util", "Map", "Entry").intern()).isSameInstanceAs(entry);
+    assertThat(ClassName.get("java.util", "Map").nestedClass("Entry").intern())
+        .isSameInstanceAs(entry);
+    // Equal, but in another package.
+    assertThat(ClassName.get("java.util.Map", "Entry").intern()).isNotSameInstanceAs(entry);
+    assertThat(entry.annotated(ANNOTATION_SPEC).intern()).isNotSameInstanceAs(entry);
+    assertThat(entry.reflectionName()).isEqualTo("java.util.Map$Entry");
+    assertThat(entry.simpleNames()).containsExactly("Map", "Entry").inOrder();
+
+    TypeVariableName t = TypeVariableName.get("T");
+    assertThat(ParameterizedTypeName.get(ClassName.get(List.class), t).intern())
+        .isNotSameInstanceAs(ParameterizedTypeName.get(ClassName.get(List.class),
+            TypeVariableName.get("T")).intern());
+  }
+
+  @Test public void factoriesDontIntern() {
+    assertThat(ClassName.get("java.lang", "String"))
+        .isNotSameInstanceAs(ClassName.get("java.lang", "String"));
+    assertThat(ParameterizedTypeName.get(List.class, String.class))
+        .isNotSameInstanceAs(ParameterizedTypeName.get(List.class, String.class));
+    assertThat(ArrayTypeName.of(String.class)).isNotSameInstanceAs(ArrayTypeName.of(String.class));
+
+    assertThat(ClassName.bestGuess("java.lang.String").intern())
+        .isSameInstanceAs(ClassName.get(String.class).intern());
+    assertThat(ArrayTypeName.of(String.class).intern())
+        .isSameInstanceAs(ArrayTypeName.of(String.class).intern());
+  }
+
   @Test public void isPrimitive() {
     assertThat(TypeName.INT.isPrimitive()).isTrue();
     assertThat(ClassName.get("java.lang", "Integer").isPrimitive()).isFalse();
@@ -78,7 +78,7 @@ public final class TypeSpecTest {
         + "    return \"taco\";\n"
         + "  }\n"
         + "}\n");
-    assertEquals(472949424, taco.hashCode()); // update expected number if source changes
+    assertEquals(-668338286, taco.hashCode()); // update expected number if source changes
   }
 
   @Test public void interestingTypes() {
@@ -1143,6 +1143,18 @@ public final class TypeSpecTest {
         + "}\n");
   }
 
+  @Test public void onlyLargeTypesRenderMembersInParallel() {
+    TypeSpec.Builder nested = TypeSpec.classBuilder("Nested");
+    for (int i = 0; i < TypeSpec.PARALLEL_MEMBER_THRESHOLD - 2; i++) {
+      nested.addField(int.class, "field" + i);
+    }
+    TypeSpec small = TypeSpec.classBuilder("Small").addType(nested.build()).build();
+    assertThat(small.rendersMembersInParallel()).isFalse();
+    TypeSpec large = small.toBuilder().addMethod(MethodSpec.methodBuilder("method").build()).build();
+    assertThat(large.rendersMembersInParallel()).isTrue();
+    assertThat(large.typeSpecs.get(0).rendersMembersInParallel()).isFalse();
+  }
+
   @Test public void originatingElementsIncludesThoseOfNestedTypes() {
     Element outerElement = Mockito.mock(Element.class);
     Element innerElement = Mockito.mock(Element.class);
@@ -1153,6 +1165,27 @@ public final class TypeSpecTest {
             .build())
         .build();
     assertThat(outer.originatingElements).containsExactly(outerElement, innerElement);
+    assertThat(outer.toBuilder().build().originatingElements)
+        .containsExactly(outerElement, innerElement);
+  }
+
+  @Test public void originatingElementHandlesIncludeThoseOfNestedTypes() {
+    OriginatingElement outerHandle = OriginatingElement.ofType(ClassName.get("com.example", "A"));
+    OriginatingElement innerHandle = OriginatingElement.ofPackage("com.example.b");
+    TypeSpec outer = TypeSpec.classBuilder("Outer")
+        .addOriginatingElement(outerHandle)
+        .addType(TypeSpec.classBuilder("Inner")
+            .addType(TypeSpec.classBuilder("Innermost")
+                .addOriginatingElement(innerHandle)
+                .build())
+            .build())
+        .build();
+    assertThat(outer.originatingElements).isEmpty();
+    assertThat(outer.originatingElementHandles).containsExactly(outerHandle, innerHandle);
+    assertThat(outer.toBuilder().build().originatingElementHandles)
+        .containsExactly(outerHandle, innerHandle);
+    assertThat(innerHandle.isPackage()).isTrue();
+    assertThat(innerHandle.toString()).isEqualTo("package com.example.b");
   }
 
   @Test public void intersectionType() {
@@ -2524,6 +2557,29 @@ public final class TypeSpecTest {
     assertThat(a.hashCode()).isEqualTo(b.hashCode());
   }
 
+  @Test public void equalsComparesMembersInEmittedOrder() {
+    FieldSpec constant = FieldSpec.builder(int.class, "A", Modifier.STATIC).build();
+    FieldSpec field = FieldSpec.builder(int.class, "b").build();
+    MethodSpec constructor = MethodSpec.constructorBuilder().build();
+    MethodSpec method = MethodSpec.methodBuilder("c").build();
+    TypeSpec a = TypeSpec.classBuilder("Taco")
+        .addField(constant).addField(field).addMethod(constructor).addMethod(method)
+        .build();
+    TypeSpec b = TypeSpec.classBuilder("Taco")
+        .addField(field).addField(constant).addMethod(method).addMethod(constructor)
+        .build();
+    assertThat(a.toString()).isEqualTo(b.toString());
+    assertThat(a.equals(b)).isTrue();
+    assertThat(a.hashCode()).isEqualTo(b.hashCode());
+    TypeSpec c = TypeSpec.classBuilder("Taco")
+        .addMethod(method).addMethod(MethodSpec.methodBuilder("d").build())
+        .build();
+    TypeSpec d = TypeSpec.classBuilder("Taco")
+        .addMethod(MethodSpec.methodBuilder("d").build()).addMethod(method)
+        .build();
+    assertThat(c.equals(d)).isFalse();
+  }
+
   @Test public void classNameFactories() {
     ClassName className = ClassName.get("com.example", "Example");
     assertThat(TypeSpec.classBuilder(className).build().name).isEqualTo("Example");
@@ -71,6 +71,17 @@ public class UtilTest {
     stringLiteral("e^{i\\\\pi}+1=0", "e^{i\\pi}+1=0", " ");
   }
 
+  @Test public void stringLiteralEscapes() {
+    stringLiteral("\\u0000a\\u001fb\\u007f\\u009f\u00a0'", "\u0000a\u001fb\u007f\u009f\u00a0'", " ");
+    stringLiteral("\uD83C\uDF2E\\r\uD83C\uDF2E", "\uD83C\uDF2E\r\uD83C\uDF2E", " ");
+    stringLiteral("a\\n\"\n    + \"\\n\"\n    + \"b\\n", "a\n\nb\n", "  ");
+    stringLiteral("");
+
+    StringBuilder out = new StringBuilder("x = ");
+    Util.appendStringLiteralWithDoubleQuotes(out, "\"a\"", "  ");
+    assertEquals("x = \"\\\"a\\\"\"", out.toString());
+  }
+
   void stringLiteral(String string) {
     stringLiteral(string, string, " ");
   }